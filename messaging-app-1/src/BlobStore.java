@@ -0,0 +1,389 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * BlobStore class that stores large message bodies and file attachments in a local directory.
+ * Uploads and downloads move one fixed-size chunk per command, so neither side ever holds
+ * a whole file in memory. The number of bytes received so far is the length of the partial file,
+ * which lets a client resume an interrupted upload; the SHA-256 checksum is verified on commit.
+ * Blob metadata is kept in the blobs table; file I/O runs on its own stage. A user has a limited
+ * number of open uploads, and uploads that are never committed expire.
+ */
+public class BlobStore {
+    public static final int CHUNK_SIZE = 64 * 1024; // Bytes per CHUNK or DOWNLOAD; about 87 KB of base64 on the wire
+    public static final String REFERENCE_PREFIX = "blob:"; // Message content referring to a blob: "blob:id:size:name"
+
+    private final Path dir;
+    private final long maxSize;
+    private final int maxOpenUploads;
+    private final long uploadTtlMillis;
+    private final Database db;
+    private final Stage dbStage;
+    private final Stage blobStage;
+    private final Map<Long, Blob> uploads = new ConcurrentHashMap<>(); // Metadata of uploads in progress on this node
+
+    /**
+     * Constructor for BlobStore.
+     *
+     * @param dir       Directory holding the blob files; shared by every node of a cluster
+     * @param maxSize         Largest accepted blob in bytes
+     * @param maxOpenUploads  Uploads a user may have started and not committed
+     * @param uploadTtlMillis Time after which an upload that was never committed is deleted
+     * @param db              Database holding the blobs table
+     * @param dbStage         Stage the metadata queries run on
+     * @param blobStage       Stage the file I/O runs on
+     * @throws IOException if the directory cannot be created
+     */
+    public BlobStore(Path dir, long maxSize, int maxOpenUploads, long uploadTtlMillis, Database db, Stage dbStage, Stage blobStage) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxSize = maxSize;
+        this.maxOpenUploads = maxOpenUploads;
+        this.uploadTtlMillis = uploadTtlMillis;
+        this.db = db;
+        this.dbStage = dbStage;
+        this.blobStage = blobStage;
+    }
+
+    /**
+     * Registers a new upload.
+     *
+     * @param id       Blob ID
+     * @param owner    Uploading user
+     * @param receiver User the blob is sent to
+     * @param name     File name shown to the receiver
+     * @param size     Size in bytes
+     * @param sha256   Hex SHA-256 checksum of the content
+     * @return Future completing with "Upload started.:::blobId:::chunkSize" or an error
+     */
+    public CompletableFuture<String> start(long id, String owner, String receiver, String name, long size, String sha256) {
+        if (size <= 0 || size > maxSize) {
+            return CompletableFuture.completedFuture("Error: Size must be between 1 and " + maxSize + " bytes.");
+        }
+        if (name.isBlank() || name.length() > 255 || name.contains(":::") || !sha256.matches("[0-9a-f]{64}")) {
+            return CompletableFuture.completedFuture("Error: Invalid file name or checksum.");
+        }
+        Blob blob = new Blob(id, owner, receiver, name, size, sha256.toLowerCase(), false);
+        return dbStage.submit(() -> {
+            if (!db.userExists(receiver)) {
+                return "Error: Receiver does not exist.";
+            }
+            if (db.countOpenUploads(owner) >= maxOpenUploads) {
+                return "Error: Too many open uploads; commit them or wait until they expire.";
+            }
+            db.createBlob(blob);
+            uploads.put(id, blob);
+            return "Upload started.:::" + id + ":::" + CHUNK_SIZE;
+        });
+    }
+
+    /**
+     * Appends one chunk to an upload. Chunks must arrive in order; a chunk at another offset than
+     * the bytes received so far is rejected with the expected offset, so the client can resume there.
+     *
+     * @param username Uploading user
+     * @param id       Blob ID
+     * @param offset   Offset of the chunk
+     * @param base64   Chunk content, base64 encoded
+     * @return Future completing with "Chunk stored.:::received" or an error
+     */
+    public CompletableFuture<String> writeChunk(String username, long id, long offset, String base64) {
+        return upload(username, id).thenCompose(blob -> {
+            if (blob == null) {
+                return CompletableFuture.completedFuture("Error: Upload not found.");
+            }
+            return blobStage.submit(() -> {
+                byte[] data;
+                try {
+                    data = Base64.getDecoder().decode(base64);
+                } catch (IllegalArgumentException e) {
+                    return "Error: Invalid chunk encoding.";
+                }
+                try (FileChannel channel = FileChannel.open(partPath(id), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    long received = channel.size();
+                    if (offset != received) {
+                        return "Error: Expected offset.:::" + received;
+                    }
+                    if (data.length > CHUNK_SIZE || received + data.length > blob.getSize()) {
+                        return "Error: Chunk exceeds the declared size.";
+                    }
+                    channel.write(ByteBuffer.wrap(data), offset);
+                    return "Chunk stored.:::" + (received + data.length);
+                }
+            });
+        });
+    }
+
+    /**
+     * Reports how much of an upload has been received, for resuming it.
+     *
+     * @param username Uploading user
+     * @param id       Blob ID
+     * @return Future completing with "Upload status.:::received:::size" or an error
+     */
+    public CompletableFuture<String> status(String username, long id) {
+        return upload(username, id).thenCompose(blob -> {
+            if (blob == null) {
+                return CompletableFuture.completedFuture("Error: Upload not found.");
+            }
+            return blobStage.submit(() -> {
+                Path part = partPath(id);
+                long received = Files.exists(part) ? Files.size(part) : 0;
+                return "Upload status.:::" + received + ":::" + blob.getSize();
+            });
+        });
+    }
+
+    /**
+     * Completes an upload: checks its size and checksum, makes it durable and marks it committed.
+     *
+     * @param username Uploading user
+     * @param id       Blob ID
+     * @param error    Receives the error response if the upload cannot be committed
+     * @return Future completing with the committed blob, or null with the reason in error
+     */
+    public CompletableFuture<Blob> commit(String username, long id, StringBuilder error) {
+        return upload(username, id).thenCompose(blob -> {
+            if (blob == null) {
+                error.append("Error: Upload not found.");
+                return CompletableFuture.completedFuture(null);
+            }
+            return blobStage.submit(() -> {
+                Path part = partPath(id);
+                try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                    if (channel.size() != blob.getSize()) {
+                        error.append("Error: Upload incomplete.:::").append(channel.size());
+                        return null;
+                    }
+                    channel.force(true);
+                } catch (NoSuchFileException e) {
+                    error.append("Error: Upload incomplete.:::0");
+                    return null;
+                }
+                if (!sha256(part).equals(blob.getSha256())) {
+                    Files.delete(part); // The content is corrupt; the upload starts over
+                    error.append("Error: Checksum mismatch.:::0");
+                    return null;
+                }
+                Files.move(part, blobPath(id), StandardCopyOption.ATOMIC_MOVE);
+                return blob;
+            }).thenCompose(committed -> committed == null ? CompletableFuture.completedFuture(null) : dbStage.submit(() -> {
+                db.commitBlob(id);
+                uploads.remove(id);
+                return committed;
+            }));
+        });
+    }
+
+    /**
+     * Reads one chunk of a committed blob.
+     *
+     * @param username Downloading user, who must be its sender or receiver
+     * @param id       Blob ID
+     * @param offset   Offset of the chunk
+     * @return Future completing with "Chunk.:::offset:::size:::sha256:::base64" or an error
+     */
+    public CompletableFuture<String> readChunk(String username, long id, long offset) {
+        return dbStage.submit(() -> db.findBlob(id)).thenCompose(blob -> {
+            if (blob == null || !blob.isCommitted() || !(blob.getOwner().equals(username) || blob.getReceiver().equals(username))) {
+                return CompletableFuture.completedFuture("Error: File not found.");
+            }
+            if (offset < 0 || offset > blob.getSize()) {
+                return CompletableFuture.completedFuture("Error: Offset out of range.");
+            }
+            return blobStage.submit(() -> {
+                try (FileChannel channel = FileChannel.open(blobPath(id), StandardOpenOption.READ)) {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, blob.getSize() - offset));
+                    while (chunk.hasRemaining() && channel.read(chunk, offset + chunk.position()) > 0) {
+                        // Read until the chunk is full
+                    }
+                    return "Chunk.:::" + offset + ":::" + blob.getSize() + ":::" + blob.getSha256() + ":::" + Base64.getEncoder().encodeToString(chunk.array());
+                }
+            });
+        });
+    }
+
+    /**
+     * Deletes the uploads that were started longer than the TTL ago and never committed,
+     * and partial files not written to for as long, e.g. left by another node or a restart.
+     *
+     * @return Future completing with the number of uploads deleted
+     */
+    public CompletableFuture<Integer> expire() {
+        long cutoff = System.currentTimeMillis() - uploadTtlMillis;
+        uploads.keySet().removeIf(id -> IdGenerator.timestampOf(id) < cutoff); // Blob IDs are time-ordered
+        return dbStage.submit(() -> db.expireUploads(new Timestamp(cutoff))).thenCompose(expired -> blobStage.submit(() -> {
+            for (long id : expired) {
+                Files.deleteIfExists(partPath(id));
+            }
+            try (Stream<Path> parts = Files.list(dir)) {
+                for (Path part : (Iterable<Path>) parts.filter(path -> path.toString().endsWith(".part"))::iterator) {
+                    if (Files.getLastModifiedTime(part).toMillis() < cutoff) {
+                        Files.deleteIfExists(part);
+                    }
+                }
+            }
+            return expired.size();
+        }));
+    }
+
+    /**
+     * Returns the metadata of an upload in progress by the given user.
+     *
+     * @param username Uploading user
+     * @param id       Blob ID
+     * @return Future completing with the blob, or null if there is no such upload
+     */
+    private CompletableFuture<Blob> upload(String username, long id) {
+        Blob cached = uploads.get(id);
+        CompletableFuture<Blob> blob = cached != null
+                ? CompletableFuture.completedFuture(cached)
+                : dbStage.submit(() -> db.findBlob(id)); // Upload resumed on another node or after a restart
+        return blob.thenApply(found -> found != null && !found.isCommitted() && found.getOwner().equals(username) ? found : null);
+    }
+
+    /**
+     * Computes the SHA-256 checksum of a file, reading it in chunks.
+     *
+     * @param path File
+     * @return Hex checksum
+     * @throws IOException if the file cannot be read
+     */
+    private static String sha256(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JVM provides SHA-256
+        }
+    }
+
+    /**
+     * Returns the path of a partially uploaded blob.
+     *
+     * @param id Blob ID
+     * @return Path of the partial file
+     */
+    private Path partPath(long id) {
+        return dir.resolve(id + ".part");
+    }
+
+    /**
+     * Returns the path of a committed blob.
+     *
+     * @param id Blob ID
+     * @return Path of the blob file
+     */
+    private Path blobPath(long id) {
+        return dir.resolve(Long.toString(id));
+    }
+
+    /**
+     * Blob class represents the metadata of one stored file.
+     */
+    public static class Blob {
+        private final long id;
+        private final String owner;
+        private final String receiver;
+        private final String name;
+        private final long size;
+        private final String sha256;
+        private final boolean committed;
+
+        /**
+         * Constructor for Blob.
+         *
+         * @param id        Blob ID
+         * @param owner     Uploading user
+         * @param receiver  User the blob is sent to
+         * @param name      File name
+         * @param size      Size in bytes
+         * @param sha256    Hex SHA-256 checksum
+         * @param committed Whether the upload is complete
+         */
+        public Blob(long id, String owner, String receiver, String name, long size, String sha256, boolean committed) {
+            this.id = id;
+            this.owner = owner;
+            this.receiver = receiver;
+            this.name = name;
+            this.size = size;
+            this.sha256 = sha256;
+            this.committed = committed;
+        }
+
+        /**
+         * Returns the ID of the blob.
+         *
+         * @return The blob ID.
+         */
+        public long getId() { return id; }
+
+        /**
+         * Returns the uploading user.
+         *
+         * @return The owner's username.
+         */
+        public String getOwner() { return owner; }
+
+        /**
+         * Returns the user the blob is sent to.
+         *
+         * @return The receiver's username.
+         */
+        public String getReceiver() { return receiver; }
+
+        /**
+         * Returns the file name.
+         *
+         * @return The file name.
+         */
+        public String getName() { return name; }
+
+        /**
+         * Returns the size of the blob.
+         *
+         * @return The size in bytes.
+         */
+        public long getSize() { return size; }
+
+        /**
+         * Returns the checksum of the blob.
+         *
+         * @return The hex SHA-256 checksum.
+         */
+        public String getSha256() { return sha256; }
+
+        /**
+         * Returns whether the upload is complete.
+         *
+         * @return true if the blob is committed.
+         */
+        public boolean isCommitted() { return committed; }
+
+        /**
+         * Returns the message content referring to this blob.
+         *
+         * @return A string in the format "blob:id:size:name".
+         */
+        public String toReference() {
+            return REFERENCE_PREFIX + id + ":" + size + ":" + name;
+        }
+    }
+}
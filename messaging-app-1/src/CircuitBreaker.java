@@ -0,0 +1,113 @@
+import java.sql.SQLException;
+
+/**
+ * CircuitBreaker class that stops calls to a database that is down, so they fail at once instead of
+ * each waiting for a connection timeout. It opens on the first connection failure (SQLState class 08),
+ * which unlike a failed query means the database cannot be reached at all. While open, one caller per
+ * retry interval is let through as a probe; a successful probe closes the breaker again.
+ */
+public class CircuitBreaker {
+    public static final String UNAVAILABLE = "08000"; // SQLState of the failure reported while open
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final long retryMillis;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private long trips = 0;
+    private long rejected = 0;
+
+    /**
+     * Constructor for CircuitBreaker.
+     *
+     * @param retryMillis Time after which an open breaker lets a probe through
+     */
+    public CircuitBreaker(long retryMillis) {
+        this.retryMillis = retryMillis;
+    }
+
+    /**
+     * Determines whether a failure means the database cannot be reached.
+     *
+     * @param e Failure of a database call
+     * @return true if its SQLState is a connection exception
+     */
+    public static boolean isConnectionFailure(SQLException e) {
+        return e.getSQLState() != null && e.getSQLState().startsWith("08");
+    }
+
+    /**
+     * Asks to make a call. An open breaker turns half-open for the first caller after the retry interval.
+     *
+     * @return true if the call may go ahead
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= retryMillis) {
+            state = State.HALF_OPEN; // This caller is the probe
+            return true;
+        }
+        if (state != State.CLOSED) {
+            rejected++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the current call is the probe of a half-open breaker.
+     *
+     * @return true if the breaker is half-open
+     */
+    public synchronized boolean isProbing() {
+        return state == State.HALF_OPEN;
+    }
+
+    /**
+     * Determines whether calls are being refused.
+     *
+     * @return true if the breaker is open or half-open
+     */
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+
+    /**
+     * Determines whether an open breaker is waiting for a probe.
+     *
+     * @return true if the retry interval has passed
+     */
+    public synchronized boolean isProbeDue() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt >= retryMillis;
+    }
+
+    /**
+     * Records that the database could be reached, closing the breaker.
+     */
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed call. Connection failures open the breaker, and so does any failure of a probe.
+     *
+     * @param e Failure of the call
+     */
+    public synchronized void recordFailure(SQLException e) {
+        if (state == State.HALF_OPEN || (state == State.CLOSED && isConnectionFailure(e))) {
+            if (state == State.CLOSED) {
+                trips++;
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the breaker.
+     *
+     * @return A string in the format "breaker state=.. trips=.. rejected=.."
+     */
+    public synchronized String stats() {
+        return "breaker state=" + state.name().toLowerCase() + " trips=" + trips + " rejected=" + rejected;
+    }
+}
@@ -1,8 +1,14 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.text.SimpleDateFormat;
 
 /**
@@ -12,18 +18,35 @@ public class Client {
     private static boolean isAuthenticated = false;
     private static boolean isAdmin = false;
     private static String authenticatedUser = null;
+    private static String sessionToken = null; // Lets a reconnect resume the login without re-sending the password
+    private static final int PAGE_SIZE = 100; // Messages requested per INBOX or OUTBOX page
+    private static final int USER_PAGE_SIZE = 20; // Users requested per LISTUSERS page
+    private static final long KEEPALIVE_INTERVAL_MILLIS = 30 * 1000; // Must stay below the server's idle timeout
+    private static final int MAX_REDIRECTS = 3; // LOGIN or RESUME hops between cluster nodes before giving up
+    private static final int MAX_INLINE_LENGTH = 8192; // Longer SENDMSG contents are uploaded as a file, matching the server limit
+    private static final int MAX_RESUMES = 3; // Times an upload is resumed from the server's offset before giving up
+    private static final int MAX_SEND_RETRIES = 3; // Times a SENDMSG refused as busy is retried with the same message ID
+    private static final long SEND_RETRY_MILLIS = 200; // Wait before the first retry; doubled for every further one
+    private static final String CLOSED = "\n"; // Queued when the connection closes; never a line read from the server
+    private static final ReentrantLock io = new ReentrantLock(); // Keeps keepalive pings from interleaving with a command exchange
+    private static Socket socket;
+    private static String currentHost; // Node of the current connection, which holds the session after a LOGIN redirect
+    private static int currentPort;
+    private static volatile boolean moved; // Set by a MOVED push; the session is resumed once the server closes the connection
+    private static volatile PrintWriter out;
+    private static volatile BlockingQueue<String> responses; // Response lines of the current connection; pushes are printed instead
 
     /**
      * Main method to start the client application.
      *
-     * @param args Command line arguments
+     * @param args Command line arguments: optional server host (default localhost) and port (default 8000)
      */
     public static void main(String[] args) {
-        try (Socket socket = new Socket("localhost", 8000);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             Scanner scanner = new Scanner(System.in)) {
-
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8000;
+        try (Scanner scanner = new Scanner(System.in)) {
+            connect(host, port);
+            startKeepalive();
             String temp;
             System.out.println("Welcome to Alp's Chat App!");
             while (true) {
@@ -31,10 +54,10 @@ public class Client {
                     System.out.println("Possible commands: LOGIN, EXIT");
                 } else {
                     if(isAdmin) {
-                        System.out.println("Possible commands: LOGOUT, INBOX, OUTBOX, SENDMSG, ADDUSER, UPDATEUSER, REMOVEUSER, LISTUSERS, EXIT");
+                        System.out.println("Possible commands: LOGOUT, INBOX, OUTBOX, SENDMSG, SENDFILE, DOWNLOAD, SUBSCRIBE, UNSUBSCRIBE, ADDUSER, UPDATEUSER, REMOVEUSER, LISTUSERS, IMPORTUSERS, STATS, RESHARD, EXIT");
                     }
                     else {
-                        System.out.println("Possible commands: LOGOUT, INBOX, OUTBOX, SENDMSG, EXIT");
+                        System.out.println("Possible commands: LOGOUT, INBOX, OUTBOX, SENDMSG, SENDFILE, DOWNLOAD, SUBSCRIBE, UNSUBSCRIBE, EXIT");
                     }
                 }
 
@@ -47,8 +70,7 @@ public class Client {
                         } else {
                             String username = getNonEmptyInput(scanner, "Enter username:");
                             String password = getNonEmptyInput(scanner, "Enter password:");
-                            out.println("LOGIN:::" + username + ":::" + password);
-                            String response = in.readLine();
+                            String response = login("LOGIN:::" + username + ":::" + password);
 
                             String[] responseParts = response.split(":::");
                             System.out.println(responseParts[0]);
@@ -56,15 +78,16 @@ public class Client {
                                 isAuthenticated = true;
                                 authenticatedUser = username;
                                 isAdmin = Boolean.parseBoolean(responseParts[1]);
+                                sessionToken = responseParts.length > 2 ? responseParts[2] : null;
                             }
                         }
                         break;
                     case "LOGOUT":
                         if (isAuthenticated) {
-                            out.println("LOGOUT");
-                            System.out.println(in.readLine());
+                            System.out.println(request("LOGOUT"));
                             isAuthenticated = false;
                             authenticatedUser = null;
+                            sessionToken = null;
                             isAdmin = false;
                         } else {
                             System.out.println("Not logged in.");
@@ -72,11 +95,9 @@ public class Client {
                         break;
                     case "INBOX":
                         if (isAuthenticated) {
-                            out.println("INBOX:::" + authenticatedUser);
-                            temp = in.readLine();
-                            if (checkRemoval(temp, out, in)) break;
-                            if (!temp.isEmpty()) {
-                                List<Message> inbox = parseMessages(temp);
+                            List<Message> inbox = fetchMessages("INBOX");
+                            if (inbox == null) break;
+                            if (!inbox.isEmpty()) {
                                 printMessageTableHeader();
                                 inbox.forEach(Client::printMessage);
                             } else {
@@ -88,11 +109,9 @@ public class Client {
                         break;
                     case "OUTBOX":
                         if (isAuthenticated) {
-                            out.println("OUTBOX:::" + authenticatedUser);
-                            temp = in.readLine();
-                            if (checkRemoval(temp, out, in)) break;
-                            if (!temp.isEmpty()) {
-                                List<Message> outbox = parseMessages(temp);
+                            List<Message> outbox = fetchMessages("OUTBOX");
+                            if (outbox == null) break;
+                            if (!outbox.isEmpty()) {
                                 printMessageTableHeader();
                                 outbox.forEach(Client::printMessage);
                             } else {
@@ -105,10 +124,64 @@ public class Client {
                     case "SENDMSG":
                         if (isAuthenticated) {
                             String receiver = getNonEmptyInput(scanner, "Enter receiver's username:");
+                            out.println("TYPING:::" + receiver); // No response; shows the receiver that a message is on its way
                             String content = getNonEmptyInput(scanner, "Enter message content:");
-                            out.println("SENDMSG:::" + authenticatedUser + ":::" + receiver + ":::" + content);
-                            temp = in.readLine();
-                            if (checkRemoval(temp, out, in)) break;
+                            if (content.length() > MAX_INLINE_LENGTH) {
+                                // Too long for one line; sent as an attachment the receiver downloads
+                                Path body = Files.createTempFile("message", ".txt");
+                                try {
+                                    Files.writeString(body, content);
+                                    temp = upload(receiver, "message.txt", body);
+                                } finally {
+                                    Files.delete(body);
+                                }
+                            } else {
+                                temp = sendMessage(receiver, content);
+                            }
+                            if (checkRemoval(temp)) break;
+                            String[] sendParts = temp.split(":::");
+                            System.out.println(sendParts.length > 1 ? sendParts[0] + " (ID " + sendParts[1] + ")" : temp);
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
+                    case "SUBSCRIBE":
+                    case "UNSUBSCRIBE":
+                        if (isAuthenticated) {
+                            String users = getNonEmptyInput(scanner, "Enter usernames, separated by commas:");
+                            temp = request(command + ":::" + String.join(":::", users.trim().split("\\s*,\\s*")));
+                            if (checkRemoval(temp)) break;
+                            String[] states = temp.split(":::");
+                            System.out.println(states[0]);
+                            for (int i = 1; i < states.length; i++) {
+                                System.out.println(describePresence(states[i]));
+                            }
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
+                    case "SENDFILE":
+                        if (isAuthenticated) {
+                            String receiver = getNonEmptyInput(scanner, "Enter receiver's username:");
+                            Path file = Paths.get(getNonEmptyInput(scanner, "Enter path of the file:").trim());
+                            if (!Files.isRegularFile(file)) {
+                                System.out.println("File not found.");
+                                break;
+                            }
+                            temp = upload(receiver, file.getFileName().toString(), file);
+                            if (checkRemoval(temp)) break;
+                            String[] sendParts = temp.split(":::");
+                            System.out.println(sendParts.length > 1 ? "File sent. (ID " + sendParts[1] + ")" : temp);
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
+                    case "DOWNLOAD":
+                        if (isAuthenticated) {
+                            String blobId = getNonEmptyInput(scanner, "Enter file ID:").trim();
+                            Path target = Paths.get(getNonEmptyInput(scanner, "Enter path to save the file to:").trim());
+                            temp = download(blobId, target);
+                            if (checkRemoval(temp)) break;
                             System.out.println(temp);
                         } else {
                             System.out.println("Please login first.");
@@ -144,9 +217,8 @@ public class Client {
                                         System.out.println("Invalid input. Please enter 'true' or 'false'.");
                                     }
                                 }
-                                out.println("ADDUSER:::" + username + ":::" + password + ":::" + name + ":::" + surname + ":::" + birthdate + ":::" + gender + ":::" + email + ":::" + isAdmin);
-                                temp = in.readLine();
-                                if (checkRemoval(temp, out, in)) break;
+                                temp = request("ADDUSER:::" + username + ":::" + password + ":::" + name + ":::" + surname + ":::" + birthdate + ":::" + gender + ":::" + email + ":::" + isAdmin);
+                                if (checkRemoval(temp)) break;
                                 System.out.println(temp);
                             } else {
                                 System.out.println("Access denied.");
@@ -198,9 +270,8 @@ public class Client {
                                             System.out.println("Invalid field name.");
                                     }
                                 }
-                                out.println("UPDATEUSER:::" + usernameToUpdate + ":::" + fieldToUpdate + ":::" + newVal);
-                                temp = in.readLine();
-                                if (checkRemoval(temp, out, in)) break;
+                                temp = request("UPDATEUSER:::" + usernameToUpdate + ":::" + fieldToUpdate + ":::" + newVal);
+                                if (checkRemoval(temp)) break;
                                 System.out.println(temp);
                             } else {
                                 System.out.println("Access denied.");
@@ -213,9 +284,8 @@ public class Client {
                         if (isAuthenticated) {
                             if (isAdmin) {
                                 String userToDelete = getNonEmptyInput(scanner, "Enter username to delete:");
-                                out.println("REMOVEUSER:::" + userToDelete);
-                                temp = in.readLine();
-                                if (checkRemoval(temp, out, in)) break;
+                                temp = request("REMOVEUSER:::" + userToDelete);
+                                if (checkRemoval(temp)) break;
                                 System.out.println(temp);
                             } else {
                                 System.out.println("Access denied.");
@@ -227,15 +297,29 @@ public class Client {
                     case "LISTUSERS":
                         if (isAuthenticated) {
                             if (isAdmin) {
-                                out.println("LISTUSERS");
-                                temp = in.readLine();
-                                if (checkRemoval(temp, out, in)) break;
-                                if (!temp.isEmpty()) {
-                                    List<User> users = parseUsers(temp);
-                                    printUserTableHeader();
-                                    users.forEach(Client::printUser);
-                                } else {
-                                    System.out.println("No users found.");
+                                System.out.println("Enter username prefix (leave empty for all users):");
+                                String prefix = scanner.nextLine().trim();
+                                String cursor = "-";
+                                boolean first = true;
+                                while (true) {
+                                    temp = request("LISTUSERS:::" + USER_PAGE_SIZE + ":::" + cursor + ":::" + (prefix.isEmpty() ? "-" : prefix));
+                                    if (checkRemoval(temp)) break;
+                                    String[] page = temp.split(":::", 2);
+                                    if (page.length == 1 && !page[0].equals("-")) { // Error message instead of a page
+                                        System.out.println(temp);
+                                        break;
+                                    }
+                                    cursor = page[0];
+                                    if (page.length > 1) {
+                                        if (first) printUserTableHeader();
+                                        parseUsers(page[1]).forEach(Client::printUser);
+                                    } else if (first) {
+                                        System.out.println("No users found.");
+                                    }
+                                    first = false;
+                                    if (cursor.equals("-")) break;
+                                    System.out.println("Show next page? (y/n)");
+                                    if (!scanner.nextLine().trim().equalsIgnoreCase("y")) break;
                                 }
                             } else {
                                 System.out.println("Access denied.");
@@ -244,10 +328,72 @@ public class Client {
                             System.out.println("Please login first.");
                         }
                         break;
+                    case "IMPORTUSERS":
+                        if (isAuthenticated) {
+                            if (isAdmin) {
+                                String path = getNonEmptyInput(scanner, "Enter path of the CSV file (username,password,name,surname,birthdate,gender,email,is_admin):");
+                                io.lock();
+                                try (BufferedReader csv = new BufferedReader(new FileReader(path))) {
+                                    out.println("IMPORTUSERS");
+                                    String row;
+                                    while ((row = csv.readLine()) != null) {
+                                        if (!row.startsWith("username,")) { // Skip the header row
+                                            out.println(row);
+                                        }
+                                    }
+                                    out.println("END");
+                                    temp = readResponse();
+                                } catch (FileNotFoundException e) {
+                                    System.out.println("File not found.");
+                                    break;
+                                } finally {
+                                    io.unlock();
+                                }
+                                if (checkRemoval(temp)) break;
+                                for (String line : temp.split(":::")) {
+                                    System.out.println(line);
+                                }
+                            } else {
+                                System.out.println("Access denied.");
+                            }
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
+                    case "STATS":
+                        if (isAuthenticated) {
+                            if (isAdmin) {
+                                temp = request("STATS");
+                                if (checkRemoval(temp)) break;
+                                for (String line : temp.split(":::")) {
+                                    System.out.println(line);
+                                }
+                            } else {
+                                System.out.println("Access denied.");
+                            }
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
+                    case "RESHARD":
+                        if (isAuthenticated) {
+                            if (isAdmin) {
+                                String userToMove = getNonEmptyInput(scanner, "Enter username to move:");
+                                String shard = getNonEmptyInput(scanner, "Enter target shard number:");
+                                System.out.println("Moving, this can take a while...");
+                                temp = request("RESHARD:::" + userToMove + ":::" + shard.trim());
+                                if (checkRemoval(temp)) break;
+                                System.out.println(temp);
+                            } else {
+                                System.out.println("Access denied.");
+                            }
+                        } else {
+                            System.out.println("Please login first.");
+                        }
+                        break;
                     case "EXIT":
                         if (isAuthenticated) {
-                            out.println("LOGOUT");
-                            System.out.println(in.readLine());
+                            System.out.println(request("LOGOUT"));
                         }
                         System.out.println("Goodbye!");
                         return;
@@ -258,31 +404,437 @@ public class Client {
 
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            disconnect();
+        }
+    }
+
+    /**
+     * Connects to a server node, replacing the current connection.
+     * A reader thread then prints pushed notifications and queues command responses.
+     *
+     * @param host Server host
+     * @param port Server port
+     * @throws IOException If the connection cannot be opened.
+     */
+    private static void connect(String host, int port) throws IOException {
+        Socket newSocket = new Socket(host, port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(newSocket.getInputStream()));
+        PrintWriter writer = new PrintWriter(newSocket.getOutputStream(), true);
+        BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        io.lock();
+        try {
+            disconnect();
+            socket = newSocket;
+            currentHost = host;
+            currentPort = port;
+            moved = false;
+            out = writer;
+            responses = queue;
+        } finally {
+            io.unlock();
+        }
+        Thread reader = new Thread(() -> read(in, writer, queue), "reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Closes the current connection, if any.
+     */
+    private static void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads every line of one connection until it closes. Runs on the reader thread.
+     *
+     * @param in     The BufferedReader of the connection.
+     * @param writer The PrintWriter of the connection, used to acknowledge delivery batches.
+     * @param queue  The queue command responses of the connection are put in.
+     */
+    private static void read(BufferedReader in, PrintWriter writer, BlockingQueue<String> queue) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("PUSH:::")) {
+                    printPush(line.substring("PUSH:::".length()), writer);
+                } else {
+                    queue.add(line);
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed; reported by the next command
+        }
+        queue.add(CLOSED);
+        if (moved && io.tryLock()) { // Otherwise a command in progress sees the close and resumes itself
+            try {
+                if (moved && sessionToken != null) {
+                    resume(); // Follows the redirect to the node that owns the user now
+                }
+            } finally {
+                io.unlock();
+            }
         }
     }
 
+    /**
+     * Prints a notification pushed by the server. Delivery batches are acknowledged once printed,
+     * so the server does not send them again on the next login.
+     *
+     * @param push   The pushed line without its "PUSH:::" prefix.
+     * @param writer The PrintWriter of the connection the push arrived on.
+     */
+    private static void printPush(String push, PrintWriter writer) {
+        String[] parts = push.split(":::", 3);
+        if (parts[0].equals("BATCH") && parts.length > 2) {
+            for (Message message : parseMessages(parts[2])) {
+                System.out.println("New message from " + message.getSender() + ": " + describe(message.getContent()));
+            }
+            writer.println("ACK:::" + parts[1]); // No response; safe to send while a command is in progress
+        } else if (parts[0].equals("MOVED")) {
+            moved = true; // Another node owns the user now; the server closes this connection next
+        } else if (parts[0].equals("PRESENCE")) {
+            String[] events = push.split(":::");
+            for (int i = 1; i < events.length; i++) {
+                System.out.println(describePresence(events[i]));
+            }
+        } else {
+            System.out.println(push);
+        }
+    }
+
+    /**
+     * Sends a LOGIN and follows redirects to the cluster node owning the user.
+     *
+     * @param command The LOGIN command line.
+     * @return        The response of the owning node.
+     * @throws IOException If an I/O error occurs or the server closed the connection.
+     */
+    private static String login(String command) throws IOException {
+        String response = request(command);
+        for (int i = 0; i < MAX_REDIRECTS && response.startsWith("Redirect:::"); i++) {
+            String[] target = response.split(":::");
+            connect(target[1], Integer.parseInt(target[2]));
+            response = request(command);
+        }
+        return response;
+    }
+
+    /**
+     * Sends a command and waits for its response line. If the connection was lost while logged in,
+     * the client reconnects, resumes the session with its token and sends the command once more.
+     *
+     * @param command The command line to send.
+     * @return        The response line.
+     * @throws IOException If an I/O error occurs or the server closed the connection and the session could not be resumed.
+     */
+    private static String request(String command) throws IOException {
+        io.lock();
+        try {
+            out.println(command);
+            try {
+                return readResponse();
+            } catch (EOFException e) {
+                if (sessionToken == null || !resume()) {
+                    throw e;
+                }
+                out.println(command);
+                return readResponse();
+            }
+        } finally {
+            io.unlock();
+        }
+    }
+
+    /**
+     * Reconnects to the node of the lost connection and resumes the session without the password,
+     * following redirects to the node that owns the user if it changed.
+     * Called with the I/O lock held.
+     *
+     * @return True if the session was resumed, false if the node is unreachable or the token is no longer valid.
+     */
+    private static boolean resume() {
+        try {
+            connect(currentHost, currentPort);
+            out.println("RESUME:::" + sessionToken);
+            String response = readResponse();
+            for (int i = 0; i < MAX_REDIRECTS && response.startsWith("Redirect:::"); i++) {
+                String[] target = response.split(":::");
+                connect(target[1], Integer.parseInt(target[2]));
+                out.println("RESUME:::" + sessionToken);
+                response = readResponse();
+            }
+            if (response.startsWith("Authenticated")) {
+                System.out.println("Connection lost; session resumed.");
+                return true;
+            }
+        } catch (IOException e) {
+            // Node still unreachable
+        }
+        sessionToken = null; // Expired or revoked; the user has to log in again
+        return false;
+    }
+
+    /**
+     * Waits for the next response line from the server.
+     *
+     * @return The response line.
+     * @throws IOException If the server closed the connection or the wait was interrupted.
+     */
+    private static String readResponse() throws IOException {
+        String response;
+        try {
+            response = responses.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for the server.");
+        }
+        if (response.equals(CLOSED)) {
+            responses.add(CLOSED); // Every later command fails the same way
+            throw new EOFException("Connection closed by the server.");
+        }
+        return response;
+    }
+
+    /**
+     * Starts a background thread that pings the server while the user is idle,
+     * so that the session is not closed by the server's idle timeout. Pings always go to the current connection.
+     */
+    private static void startKeepalive() {
+        Thread keepalive = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(KEEPALIVE_INTERVAL_MILLIS);
+                    if (io.tryLock()) { // Skip this ping if a command is in progress; that exchange keeps the session alive
+                        try {
+                            request("PING");
+                        } catch (IOException e) {
+                            // Connection closed; the main loop reports it on the next command
+                        } finally {
+                            io.unlock();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Client is exiting
+            }
+        }, "keepalive");
+        keepalive.setDaemon(true);
+        keepalive.start();
+    }
+
+    /**
+     * Sends a message under a fresh client message ID, retrying with the same ID while the server is busy.
+     * The server stores the message once however often it arrives, so a retry never duplicates it.
+     *
+     * @param receiver The receiving user.
+     * @param content  The message content.
+     * @return         The server's response, "Message sent.:::id" on success.
+     * @throws IOException If an I/O error occurs or the server closed the connection.
+     */
+    private static String sendMessage(String receiver, String content) throws IOException {
+        String command = "SENDMSG:::" + authenticatedUser + ":::" + receiver + ":::" + content + ":::msgid=" + UUID.randomUUID();
+        String response = request(command);
+        long wait = SEND_RETRY_MILLIS;
+        for (int retries = 0; response.equals("Server busy, please try again.") && retries < MAX_SEND_RETRIES; retries++) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting to retry.");
+            }
+            wait *= 2;
+            response = request(command);
+        }
+        return response;
+    }
+
+    /**
+     * Uploads a file in chunks and sends it to a user. If the server reports another offset than expected,
+     * e.g. after a chunk was lost, the upload resumes from the server's offset.
+     *
+     * @param receiver The receiving user.
+     * @param name     The file name shown to the receiver.
+     * @param file     The file to upload.
+     * @return         The response of the final COMMIT, or the first error.
+     * @throws IOException If the file cannot be read, an I/O error occurs or the server closed the connection.
+     */
+    private static String upload(String receiver, String name, Path file) throws IOException {
+        long size = Files.size(file);
+        String response = request("UPLOAD:::" + receiver + ":::" + name + ":::" + size + ":::" + sha256(file));
+        if (!response.startsWith("Upload started.")) {
+            return response;
+        }
+        String[] started = response.split(":::");
+        String blobId = started[1];
+        byte[] chunk = new byte[Integer.parseInt(started[2])];
+        long offset = 0;
+        int resumes = 0;
+        try (RandomAccessFile in = new RandomAccessFile(file.toFile(), "r")) {
+            while (true) {
+                while (offset < size) {
+                    in.seek(offset);
+                    int read = in.read(chunk, 0, (int) Math.min(chunk.length, size - offset));
+                    String encoded = Base64.getEncoder().encodeToString(read == chunk.length ? chunk : Arrays.copyOf(chunk, read));
+                    response = request("CHUNK:::" + blobId + ":::" + offset + ":::" + encoded);
+                    String[] parts = response.split(":::");
+                    if (response.startsWith("Chunk stored.")) {
+                        offset = Long.parseLong(parts[1]);
+                        System.out.printf("Uploaded %d of %d bytes.\r", offset, size);
+                    } else if (response.startsWith("Error: Expected offset.") && resumes++ < MAX_RESUMES) {
+                        offset = Long.parseLong(parts[1]);
+                    } else {
+                        return response;
+                    }
+                }
+                System.out.println();
+                response = request("COMMIT:::" + blobId);
+                if (response.startsWith("Error: Upload incomplete.") && resumes++ < MAX_RESUMES) {
+                    offset = Long.parseLong(response.split(":::")[1]);
+                } else {
+                    return response;
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads a file in chunks and checks it against the SHA-256 checksum reported by the server.
+     * A failed or corrupt download is deleted.
+     *
+     * @param blobId The ID of the file.
+     * @param target The path to save the file to.
+     * @return       The result to show the user.
+     * @throws IOException If the file cannot be written, an I/O error occurs or the server closed the connection.
+     */
+    private static String download(String blobId, Path target) throws IOException {
+        long offset = 0;
+        long size;
+        String checksum = null;
+        String error = null;
+        try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(target))) {
+            do {
+                String response = request("DOWNLOAD:::" + blobId + ":::" + offset);
+                if (!response.startsWith("Chunk.")) {
+                    error = response;
+                    break;
+                }
+                String[] parts = response.split(":::"); // Chunk.:::offset:::size:::sha256:::base64
+                size = Long.parseLong(parts[2]);
+                checksum = parts[3];
+                byte[] data = Base64.getDecoder().decode(parts.length > 4 ? parts[4] : "");
+                file.write(data);
+                offset += data.length;
+                System.out.printf("Downloaded %d of %d bytes.\r", offset, size);
+            } while (offset < size);
+        }
+        System.out.println();
+        if (error == null && !sha256(target).equals(checksum)) {
+            error = "Error: Checksum mismatch; the download was deleted.";
+        }
+        if (error != null) {
+            Files.deleteIfExists(target);
+            return error;
+        }
+        return "Saved to " + target + ".";
+    }
+
+    /**
+     * Computes the SHA-256 checksum of a file, reading it in blocks.
+     *
+     * @param file The file.
+     * @return     The hex checksum.
+     * @throws IOException If the file cannot be read.
+     */
+    private static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the content of a message as shown to the user; attachments are shown with their ID for DOWNLOAD.
+     *
+     * @param content The message content.
+     * @return        The content, or a description of the attached file.
+     */
+    private static String describe(String content) {
+        String[] reference = content.split(":", 4); // blob:id:size:name
+        if (reference.length == 4 && reference[0].equals("blob")) {
+            return "[File " + reference[3] + ", " + reference[2] + " bytes, DOWNLOAD ID " + reference[1] + "]";
+        }
+        return content;
+    }
+
+    /**
+     * Returns a presence event as shown to the user.
+     *
+     * @param event The event in the format "username=online", "username=offline" or "username=typing".
+     * @return      The description of the event.
+     */
+    private static String describePresence(String event) {
+        String[] parts = event.split("=", 2);
+        if (parts.length < 2) {
+            return event;
+        }
+        return parts[1].equals("typing") ? parts[0] + " is typing a message to you..." : parts[0] + " is " + parts[1] + ".";
+    }
+
     /**
      * Checks if the response indicates that the user has been removed and performs the logout process if true.
      *
      * @param response The response message to check.
-     * @param out      The PrintWriter to send the logout command to the server.
-     * @param in       The BufferedReader to read the server's response.
      * @return         True if the user has been removed and the logout process was performed, false otherwise.
-     * @throws IOException If an I/O error occurs while reading from the BufferedReader or writing to the PrintWriter.
+     * @throws IOException If an I/O error occurs or the server closed the connection.
      */
-    private static boolean checkRemoval(String response, PrintWriter out, BufferedReader in) throws IOException {
+    private static boolean checkRemoval(String response) throws IOException {
         if (response.equals("You have been removed.")) {
             System.out.println(response);
-            out.println("LOGOUT");
-            System.out.println(in.readLine());
+            System.out.println(request("LOGOUT"));
             isAuthenticated = false;
             authenticatedUser = null;
+            sessionToken = null;
             isAdmin = false;
             return true;
         }
         return false;
     }
 
+    /**
+     * Fetches every page of the inbox or outbox, using the last message ID as the cursor.
+     *
+     * @param command "INBOX" or "OUTBOX"
+     * @return        List of Message objects, or null if the user has been removed.
+     * @throws IOException If an I/O error occurs or the server closed the connection.
+     */
+    private static List<Message> fetchMessages(String command) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        long cursor = 0;
+        while (true) {
+            String response = request(command + ":::" + authenticatedUser + ":::" + cursor + ":::" + PAGE_SIZE);
+            if (checkRemoval(response)) return null;
+            if (response.isEmpty()) break;
+            List<Message> page = parseMessages(response);
+            messages.addAll(page);
+            if (page.size() < PAGE_SIZE) break;
+            cursor = page.get(page.size() - 1).getId();
+        }
+        return messages;
+    }
+
     /**
      * Prints the header for the user table.
      */
@@ -332,24 +884,21 @@ public class Client {
         String format = "| %-15s | %-15s | %-100s | %-20s |\n";
         String line = "+-----------------+-----------------+------------------------------------------------------------------------------------------------------+----------------------+\n";
 
-        System.out.format(format, message.getSender(), message.getReceiver(), message.getContent(), formattedTimestamp);
+        System.out.format(format, message.getSender(), message.getReceiver(), describe(message.getContent()), formattedTimestamp);
         System.out.print(line);
     }
 
     /**
      * Parses a string representation of users and returns a list of User objects.
      *
-     * @param usersString String representation of users, separated by ":::"
+     * @param usersString String representation of users without passwords, separated by ":::"
      * @return List of User objects
      */
     private static List<User> parseUsers(String usersString) {
         List<User> users = new ArrayList<>();
-
-        usersString += ":::";
-        while (!usersString.isEmpty()) {
-            String[] temp = usersString.split(":::", 9);
-            users.add(new User(temp[0], temp[1], temp[2], temp[3], Date.valueOf(temp[4]), temp[5], temp[6], Boolean.parseBoolean(temp[7])));
-            usersString = temp[8];
+        String[] fields = usersString.split(":::");
+        for (int i = 0; i + 6 < fields.length; i += 7) {
+            users.add(new User(fields[i], null, fields[i + 1], fields[i + 2], Date.valueOf(fields[i + 3]), fields[i + 4], fields[i + 5], Boolean.parseBoolean(fields[i + 6])));
         }
         return users;
     }
@@ -365,9 +914,9 @@ public class Client {
 
         messagesString += ":::";
         while (!messagesString.isEmpty()) {
-            String[] temp = messagesString.split(":::", 5);
-            messages.add(new Message(temp[0], temp[1], temp[2], Timestamp.valueOf(temp[3])));
-            messagesString = temp[4];
+            String[] temp = messagesString.split(":::", 6);
+            messages.add(new Message(Long.parseLong(temp[0]), temp[1], temp[2], temp[3], Timestamp.valueOf(temp[4])));
+            messagesString = temp[5];
         }
         return messages;
     }
@@ -0,0 +1,565 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Cluster class that tracks the live server nodes, assigns every user to one owning node with a
+ * consistent-hash ring, and forwards live deliveries to other nodes over a TCP link.
+ * Nodes announce themselves with heartbeats in the shared cluster_nodes table, so a node can join
+ * or leave without restarting the others, and only the users of that node change owner.
+ * <p>
+ * The link port is bound to the host of this node. A link is only accepted from a ring member
+ * connecting from that member's host, and only after it answers a random challenge with an HMAC
+ * keyed with the cluster secret, so other hosts cannot inject deliveries or revocations.
+ */
+public class Cluster {
+    private static final int VIRTUAL_NODES = 64; // Ring positions per node; more positions spread users more evenly
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000; // Longest wait for a link to another node, including its handshake
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Database db;
+    private final Stage dbStage;
+    private final Node self;
+    private final long heartbeatMillis;
+    private final long nodeTtlMillis;
+    private final BiConsumer<String, String> localDelivery; // Pushes a line to the sessions of a user on this node
+    private final Consumer<String> localBroadcast; // Handles a line broadcast by another node
+    private final Runnable ringChanged; // Called after nodes joined or left the ring
+    private final String configuredSecret; // -Dcluster.secret, or null to use the secret stored in the database
+    private volatile byte[] secret; // Key of the link handshake; null until loaded, and links are refused until then
+    private volatile NavigableMap<Integer, Node> ring; // Ring position -> node
+    private final Map<Integer, PrintWriter> links = new ConcurrentHashMap<>(); // Node ID -> outgoing link
+    private final ExecutorService linkWriter = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "link-out"));
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "cluster"));
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong(); // Incoming links that failed the handshake
+    private ServerSocket linkSocket;
+
+    /**
+     * Constructor for Cluster. Until the first heartbeat the ring only contains this node.
+     *
+     * @param db              Database
+     * @param dbStage         Stage the heartbeats run on
+     * @param self            This node
+     * @param heartbeatMillis Time between two heartbeats, which is also how often the ring is refreshed
+     * @param nodeTtlMillis   Nodes without a heartbeat for longer are removed from the ring
+     * @param localDelivery   Called with a username and a line forwarded by another node
+     * @param localBroadcast  Called with a line broadcast by another node
+     * @param ringChanged     Called after nodes joined or left the ring, so sessions of users that changed owner can move
+     * @param secret          Shared secret of the links, or null to use a random secret stored in the database
+     */
+    public Cluster(Database db, Stage dbStage, Node self, long heartbeatMillis, long nodeTtlMillis,
+                   BiConsumer<String, String> localDelivery, Consumer<String> localBroadcast, Runnable ringChanged, String secret) {
+        this.db = db;
+        this.dbStage = dbStage;
+        this.self = self;
+        this.heartbeatMillis = heartbeatMillis;
+        this.nodeTtlMillis = nodeTtlMillis;
+        this.localDelivery = localDelivery;
+        this.localBroadcast = localBroadcast;
+        this.ringChanged = ringChanged;
+        this.configuredSecret = secret;
+        this.ring = buildRing(List.of(self));
+    }
+
+    /**
+     * Binds the link port on the host of this node and starts accepting links from other nodes.
+     *
+     * @throws IOException if the link port cannot be bound
+     */
+    public void listen() throws IOException {
+        linkSocket = new ServerSocket(self.getLinkPort(), 50, InetAddress.getByName(self.getHost()));
+        daemon(() -> {
+            try {
+                while (true) {
+                    Socket peer = linkSocket.accept();
+                    daemon(() -> receive(peer), "link-in-" + peer.getPort()).start();
+                }
+            } catch (IOException e) {
+                // Link socket closed on shutdown
+            }
+        }, "link-accept").start();
+    }
+
+    /**
+     * Loads the link secret, then joins the cluster and keeps the ring up to date. Called once the schema is current.
+     */
+    public void start() {
+        scheduler.execute(this::loadSecret);
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the link secret, storing a random one in the database if no node has done so yet.
+     */
+    private void loadSecret() {
+        if (configuredSecret != null) {
+            secret = configuredSecret.getBytes(StandardCharsets.UTF_8);
+            return;
+        }
+        byte[] candidate = new byte[32];
+        RANDOM.nextBytes(candidate);
+        try {
+            String stored = dbStage.submit(() -> db.clusterSecret(Base64.getEncoder().encodeToString(candidate))).join();
+            secret = stored.getBytes(StandardCharsets.UTF_8);
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace(); // Links stay refused; retried on the next heartbeat
+        }
+    }
+
+    /**
+     * Sends a heartbeat and rebuilds the ring from the live nodes.
+     */
+    private void refresh() {
+        try {
+            List<Node> nodes = dbStage.submit(() -> {
+                if (!db.heartbeat(self, nodeTtlMillis)) {
+                    throw new IllegalStateException("Node ID " + self.getId() + " is already used by another live node.");
+                }
+                return db.liveNodes(nodeTtlMillis);
+            }).join();
+            if (!nodes.contains(self)) {
+                nodes.add(self); // Heartbeat and read straddled the TTL boundary
+            }
+            if (secret == null) {
+                loadSecret();
+            }
+            Set<Integer> before = memberIds();
+            ring = buildRing(nodes);
+            if (!memberIds().equals(before)) {
+                ringChanged.run();
+            }
+            for (Integer id : links.keySet()) {
+                if (nodes.stream().noneMatch(node -> node.getId() == id)) {
+                    closeLink(id); // Node left the cluster
+                }
+            }
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace(); // Ring stays as it is until the next heartbeat
+            if (e.getCause() instanceof IllegalStateException) {
+                System.exit(1); // Two nodes with one ID would generate duplicate message IDs
+            }
+        }
+    }
+
+    /**
+     * Returns the node owning a user.
+     *
+     * @param username Username
+     * @return Owning node
+     */
+    public Node owner(String username) {
+        NavigableMap<Integer, Node> current = ring;
+        Map.Entry<Integer, Node> entry = current.ceilingEntry(hash(username));
+        return entry != null ? entry.getValue() : current.firstEntry().getValue();
+    }
+
+    /**
+     * Determines whether a node is this node.
+     *
+     * @param node Node to check
+     * @return true if the node is this node
+     */
+    public boolean isSelf(Node node) {
+        return node.getId() == self.getId();
+    }
+
+    /**
+     * Returns the IDs of the nodes currently in the ring, including this node.
+     *
+     * @return Node IDs
+     */
+    public Set<Integer> memberIds() {
+        return ring.values().stream().map(Node::getId).collect(Collectors.toSet());
+    }
+
+    /**
+     * Forwards a line for a user to another node, which pushes it to the user's sessions there.
+     * Delivery is best effort: the message itself is already stored, so a dropped line is only a late notification.
+     *
+     * @param node     Node to forward to
+     * @param username Receiving user
+     * @param line     Line to push
+     * @return Future completing with true once the line is written to the link, or false if it was dropped
+     */
+    public CompletableFuture<Boolean> forward(Node node, String username, String line) {
+        return send(node, "DELIVER:::" + username + ":::" + line);
+    }
+
+    /**
+     * Sends a line to every other node of the cluster, best effort like forward().
+     *
+     * @param line Line to broadcast
+     */
+    public void broadcast(String line) {
+        for (Node node : ring.values().stream().distinct().collect(Collectors.toList())) {
+            if (!isSelf(node)) {
+                send(node, "BROADCAST:::" + line);
+            }
+        }
+    }
+
+    /**
+     * Writes a line to the link of another node, connecting first if needed.
+     *
+     * @param node Node to send to
+     * @param line Link line
+     * @return Future completing with true once the line is written, or false if it was dropped
+     */
+    private CompletableFuture<Boolean> send(Node node, String line) {
+        return CompletableFuture.supplyAsync(() -> {
+            PrintWriter link = links.get(node.getId());
+            try {
+                if (link == null) {
+                    link = connect(node);
+                    links.put(node.getId(), link);
+                }
+            } catch (IOException e) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            link.println(line);
+            if (link.checkError()) {
+                closeLink(node.getId());
+                dropped.incrementAndGet();
+                return false;
+            }
+            forwarded.incrementAndGet();
+            return true;
+        }, linkWriter);
+    }
+
+    /**
+     * Opens a link to another node and answers its challenge.
+     * Link handshake: the accepting node sends "HELLO:::nonce", the connecting node answers
+     * "AUTH:::nodeId:::hmac" and the accepting node confirms with "OK".
+     *
+     * @param node Node to connect to
+     * @return Writer of the authenticated link
+     * @throws IOException if the node cannot be reached or refuses the link
+     */
+    private PrintWriter connect(Node node) throws IOException {
+        byte[] key = secret;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(node.getHost(), node.getLinkPort()), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter link = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
+            String hello = in.readLine();
+            if (key == null || hello == null || !hello.startsWith("HELLO:::")) {
+                throw new IOException("Link handshake with node " + node.getId() + " failed");
+            }
+            link.println("AUTH:::" + self.getId() + ":::" + sign(key, hello.substring("HELLO:::".length()), self.getId(), node.getId()));
+            if (!"OK".equals(in.readLine())) {
+                throw new IOException("Node " + node.getId() + " refused the link");
+            }
+            return link;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the handshake of an incoming link: the peer must be a ring member connecting from
+     * its own host, and must prove that it knows the cluster secret.
+     *
+     * @param peer Link socket of the other node
+     * @param in   Reader of the link
+     * @param out  Writer of the link
+     * @return true if the link is accepted
+     * @throws IOException if the link fails during the handshake
+     */
+    private boolean authenticate(Socket peer, BufferedReader in, PrintWriter out) throws IOException {
+        byte[] key = secret;
+        if (key == null) {
+            return false; // Secret not loaded yet; the other node retries with its next line
+        }
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String nonce = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        peer.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        out.println("HELLO:::" + nonce);
+        String reply = in.readLine();
+        String[] parts = reply == null ? new String[0] : reply.split(":::");
+        if (parts.length != 3 || !parts[0].equals("AUTH")) {
+            return false;
+        }
+        Node node = member(parts[1]);
+        if (node == null || isSelf(node) || !isHostOf(node, peer.getInetAddress())) {
+            return false;
+        }
+        String expected = sign(key, nonce, node.getId(), self.getId());
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), parts[2].getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        out.println("OK");
+        peer.setSoTimeout(0);
+        return true;
+    }
+
+    /**
+     * Looks up a ring member by ID.
+     *
+     * @param id Node ID as sent in the handshake
+     * @return The node, or null if it is not in the ring
+     */
+    private Node member(String id) {
+        for (Node node : ring.values()) {
+            if (Integer.toString(node.getId()).equals(id)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether an address is one of the addresses of a node's host.
+     *
+     * @param node    Ring member
+     * @param address Address the link came from
+     * @return true if the host of the node resolves to the address
+     */
+    private static boolean isHostOf(Node node, InetAddress address) {
+        try {
+            for (InetAddress candidate : InetAddress.getAllByName(node.getHost())) {
+                if (candidate.equals(address)) {
+                    return true;
+                }
+            }
+        } catch (UnknownHostException e) {
+            // Host of the node cannot be resolved; the link is refused
+        }
+        return false;
+    }
+
+    /**
+     * Computes the handshake answer of a link.
+     *
+     * @param key   Cluster secret
+     * @param nonce Challenge of the accepting node
+     * @param from  ID of the connecting node
+     * @param to    ID of the accepting node
+     * @return Base64 HMAC of the challenge and both node IDs
+     */
+    private static String sign(byte[] key, String nonce, int from, int to) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(key, HMAC_ALGORITHM));
+            byte[] digest = mac.doFinal((nonce + ":::" + from + ":::" + to).getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    /**
+     * Reads the lines another node forwards over its link, once the link passed the handshake.
+     *
+     * @param peer Link socket of the other node
+     */
+    private void receive(Socket peer) {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(peer.getInputStream()));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(peer.getOutputStream()), true)) {
+            if (!authenticate(peer, in, out)) {
+                refused.incrementAndGet();
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("BROADCAST:::")) {
+                    received.incrementAndGet();
+                    localBroadcast.accept(line.substring("BROADCAST:::".length()));
+                    continue;
+                }
+                String[] parts = line.split(":::", 3); // DELIVER:::username:::line
+                if (parts.length == 3 && parts[0].equals("DELIVER")) {
+                    received.incrementAndGet();
+                    localDelivery.accept(parts[1], parts[2]);
+                }
+            }
+        } catch (IOException e) {
+            // Other node went away; it reconnects when it has something to forward
+        }
+    }
+
+    /**
+     * Closes the outgoing link to a node.
+     *
+     * @param id Node ID
+     */
+    private void closeLink(int id) {
+        PrintWriter link = links.remove(id);
+        if (link != null) {
+            link.close();
+        }
+    }
+
+    /**
+     * Leaves the cluster, so the other nodes take over this node's users without waiting for the TTL.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        linkWriter.shutdownNow();
+        try {
+            if (linkSocket != null) {
+                linkSocket.close();
+            }
+            db.leaveCluster(self.getId());
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the cluster state.
+     *
+     * @return A string in the format "cluster node=.. members=.. forwarded=.. received=.. dropped=.. refused=.."
+     */
+    public String stats() {
+        long members = ring.values().stream().distinct().count();
+        return "cluster node=" + self.getId() + " members=" + members + " forwarded=" + forwarded.get()
+                + " received=" + received.get() + " dropped=" + dropped.get() + " refused=" + refused.get();
+    }
+
+    /**
+     * Builds a ring with VIRTUAL_NODES positions per node.
+     *
+     * @param nodes Live nodes
+     * @return Ring position -> node
+     */
+    private static NavigableMap<Integer, Node> buildRing(List<Node> nodes) {
+        NavigableMap<Integer, Node> ring = new TreeMap<>();
+        for (Node node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash("node-" + node.getId() + "#" + i), node);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Hashes a key onto the ring. String.hashCode() is fully specified, so every node computes
+     * the same position; the finalizer spreads similar keys such as "node-1#1" and "node-1#2".
+     *
+     * @param key Username or virtual node name
+     * @return Ring position
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Creates a daemon thread.
+     *
+     * @param runnable Body of the thread
+     * @param name     Thread name
+     * @return The unstarted thread
+     */
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Node class represents one server process of the cluster.
+     */
+    public static class Node {
+        private final int id;
+        private final String host;
+        private final int port;
+        private final int linkPort;
+
+        /**
+         * Constructor for Node.
+         *
+         * @param id       Node ID, also used in generated message IDs
+         * @param host     Host clients and other nodes connect to
+         * @param port     Client port
+         * @param linkPort Port of the inter-node link
+         */
+        public Node(int id, String host, int port, int linkPort) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+            this.linkPort = linkPort;
+        }
+
+        /**
+         * Returns the ID of the node.
+         *
+         * @return The node ID.
+         */
+        public int getId() { return id; }
+
+        /**
+         * Returns the host of the node.
+         *
+         * @return The host name or address.
+         */
+        public String getHost() { return host; }
+
+        /**
+         * Returns the client port of the node.
+         *
+         * @return The client port.
+         */
+        public int getPort() { return port; }
+
+        /**
+         * Returns the inter-node link port of the node.
+         *
+         * @return The link port.
+         */
+        public int getLinkPort() { return linkPort; }
+
+        /**
+         * Compares nodes by ID.
+         *
+         * @param o Object to compare with
+         * @return true if o is a node with the same ID
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node && ((Node) o).id == id;
+        }
+
+        /**
+         * Returns the hash code of the node.
+         *
+         * @return The node ID
+         */
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+}
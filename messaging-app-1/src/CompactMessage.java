@@ -0,0 +1,73 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+
+/**
+ * CompactMessage class represents a message kept in memory for long, e.g. in the inbox cache.
+ * It stores the timestamp as epoch milliseconds, the usernames as codes of the Usernames dictionary
+ * and the content as UTF-8 bytes, decoded only when the message is read. That is less than half
+ * the heap of a Message read from the database, which holds its own Timestamp and three Strings.
+ */
+public class CompactMessage {
+    private final long id;
+    private final long timestamp; // Epoch milliseconds
+    private final int sender;
+    private final int receiver;
+    private final byte[] content; // UTF-8
+
+    /**
+     * Constructs a new CompactMessage object.
+     *
+     * @param id        The time-ordered ID of the message.
+     * @param sender    The username of the sender, or null if the sender was removed.
+     * @param receiver  The username of the receiver, or null if the receiver was removed.
+     * @param content   The content of the message.
+     * @param timestamp The time the message was sent, in epoch milliseconds.
+     */
+    public CompactMessage(long id, String sender, String receiver, String content, long timestamp) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.sender = Usernames.codeOf(sender);
+        this.receiver = Usernames.codeOf(receiver);
+        this.content = content.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compacts a message.
+     *
+     * @param message The message.
+     * @return The compact form of the message.
+     */
+    public static CompactMessage of(Message message) {
+        return new CompactMessage(message.getId(), message.getSender(), message.getReceiver(), message.getContent(), message.getTimestamp().getTime());
+    }
+
+    /**
+     * Returns the ID of the message.
+     *
+     * @return The ID of the message.
+     */
+    public long getId() { return id; }
+
+    /**
+     * Estimates the heap the message holds: object header and fields, plus the content array.
+     *
+     * @return Size in bytes
+     */
+    public int size() { return 48 + 16 + content.length; }
+
+    /**
+     * Decodes the content of the message.
+     *
+     * @return The content of the message.
+     */
+    public String getContent() { return new String(content, StandardCharsets.UTF_8); }
+
+    /**
+     * Appends the message in the same format as Message.toString().
+     *
+     * @param out Buffer of the response line
+     */
+    public void appendTo(StringBuilder out) {
+        Message.appendTo(out, id, Usernames.nameOf(sender), Usernames.nameOf(receiver), getContent(), new Timestamp(timestamp));
+    }
+}
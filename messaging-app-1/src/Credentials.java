@@ -0,0 +1,256 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Credentials class that hashes and verifies user passwords and caches verified sessions.
+ * Verification runs on a dedicated bounded pool so connection handlers never burn CPU on hashing.
+ */
+public class Credentials {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2";
+    private static final int ITERATIONS = 120000;
+    private static final int SALT_BYTES = 16;
+    private static final int KEY_BITS = 256;
+    private static final int QUEUE_CAPACITY = 64; // Pending verifications before logins are rejected
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final Stage verifier;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // Token -> verified session
+    private final long sessionTtlMillis;
+
+    /**
+     * Constructor for Credentials.
+     *
+     * @param poolSize         Number of threads used for password verification
+     * @param sessionTtlMillis How long a verified session token stays valid
+     */
+    public Credentials(int poolSize, long sessionTtlMillis) {
+        this.sessionTtlMillis = sessionTtlMillis;
+        this.verifier = new Stage("verify", poolSize, QUEUE_CAPACITY);
+    }
+
+    /**
+     * Hashes a password with a fresh random salt.
+     *
+     * @param password Plaintext password
+     * @return Encoded hash in the format "pbkdf2$iterations$salt$hash"
+     */
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] derived = derive(password, salt, ITERATIONS);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + "$" + ITERATIONS + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(derived);
+    }
+
+    /**
+     * Checks a password against a stored value, which may be a hash or a legacy plaintext password.
+     *
+     * @param password Plaintext password supplied by the client
+     * @param stored   Value stored in the password column
+     * @return true if the password matches, false otherwise
+     */
+    public static boolean matches(String password, String stored) {
+        if (!isHashed(stored)) {
+            return MessageDigest.isEqual(password.getBytes(), stored.getBytes());
+        }
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] expected = decoder.decode(parts[3]);
+        byte[] actual = derive(password, decoder.decode(parts[2]), Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Determines whether a stored password is already hashed.
+     *
+     * @param stored Value stored in the password column
+     * @return true if the value is a PBKDF2 hash, false if it is legacy plaintext
+     */
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX + "$");
+    }
+
+    /**
+     * Verifies a password on the verifier pool.
+     *
+     * @param password Plaintext password supplied by the client
+     * @param stored   Value stored in the password column
+     * @return Future completing with the verification result, or with RejectedExecutionException if too many verifications are pending
+     */
+    public CompletableFuture<Boolean> verify(String password, String stored) {
+        return verifier.submit(() -> matches(password, stored));
+    }
+
+    /**
+     * Hashes a password on the verifier pool.
+     *
+     * @param password Plaintext password
+     * @return Future completing with the encoded hash, or with RejectedExecutionException if too many verifications are pending
+     */
+    public CompletableFuture<String> hashAsync(String password) {
+        return verifier.submit(() -> hash(password));
+    }
+
+    /**
+     * Returns the verifier stage, for statistics.
+     *
+     * @return The verifier stage
+     */
+    public Stage getStage() {
+        return verifier;
+    }
+
+    /**
+     * Issues a session token for a user whose password has just been verified.
+     *
+     * @param username Username
+     * @param isAdmin  Whether the user is an admin
+     * @return Session token
+     */
+    public String issueToken(String username, boolean isAdmin) {
+        byte[] bytes = new byte[24];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        sessions.put(token, new Session(username, isAdmin, System.currentTimeMillis() + sessionTtlMillis));
+        return token;
+    }
+
+    /**
+     * Takes over a session another node verified, after its user moved to this node.
+     *
+     * @param token     Session token
+     * @param username  Username
+     * @param isAdmin   Whether the user is an admin
+     * @param expiresAt Expiry time in epoch milliseconds, kept from the original login
+     */
+    public void adopt(String token, String username, boolean isAdmin, long expiresAt) {
+        sessions.put(token, new Session(username, isAdmin, expiresAt));
+    }
+
+    /**
+     * Looks up a session token without touching the password hash.
+     *
+     * @param token Session token
+     * @return The session, or null if the token is unknown or expired
+     */
+    public Session resume(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (session.expiresAt < System.currentTimeMillis()) {
+            sessions.remove(token);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Revokes a single session token.
+     *
+     * @param token Session token
+     */
+    public void revokeToken(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    /**
+     * Revokes every session of a user, e.g. after removal, a password change or an admin status change.
+     *
+     * @param username Username
+     */
+    public void revokeUser(String username) {
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            if (session.username.equals(username) || session.expiresAt < System.currentTimeMillis()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops every expired session, so tokens of clients that never return do not pile up.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.expiresAt < now);
+    }
+
+    /**
+     * Derives a PBKDF2 key.
+     *
+     * @param password   Plaintext password
+     * @param salt       Salt bytes
+     * @param iterations Iteration count
+     * @return Derived key bytes
+     */
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("PBKDF2 is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    /**
+     * Session class represents a verified login that can be resumed by token.
+     */
+    public static class Session {
+        private final String username;
+        private final boolean isAdmin;
+        private final long expiresAt;
+
+        /**
+         * Constructs a new Session object.
+         *
+         * @param username  The username of the session owner.
+         * @param isAdmin   Indicates whether the user is an admin.
+         * @param expiresAt Expiry time in epoch milliseconds.
+         */
+        Session(String username, boolean isAdmin, long expiresAt) {
+            this.username = username;
+            this.isAdmin = isAdmin;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Returns the username of the session owner.
+         *
+         * @return The username.
+         */
+        public String getUsername() { return username; }
+
+        /**
+         * Indicates whether the session owner is an admin.
+         *
+         * @return true if the user is an admin, false otherwise.
+         */
+        public boolean isAdmin() { return isAdmin; }
+
+        /**
+         * Returns when the session expires.
+         *
+         * @return Expiry time in epoch milliseconds.
+         */
+        public long getExpiresAt() { return expiresAt; }
+    }
+}
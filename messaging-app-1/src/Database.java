@@ -1,202 +1,1533 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.sql.*;
 import java.sql.Date;
+import java.time.YearMonth;
 import java.util.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
 /**
  * Database class that handles database operations.
  */
 public class Database {
-    private Connection dbConnection;
+    public static final int PARTITION_MONTHS_AHEAD = 2; // Future monthly messages partitions kept ready
+    private static final long BREAKER_RETRY_MILLIS = 1000; // Time between reconnection attempts while the database is unavailable
+    private static final int PROBE_TIMEOUT_SECONDS = 2; // Longest wait for a connection check while probing
+    private static final long MIGRATION_LOCK = 0x636861745f6d6967L; // Advisory lock key serializing migrations
+    // Schema migrations; version N is MIGRATIONS[N - 1]. Append new migrations, never edit applied ones.
+    // Version 1 is the schema before versioning, written so it is a no-op on databases that already have it.
+    private static final String[] MIGRATIONS = {
+        """
+            -- Create users table
+            CREATE TABLE if not exists users (
+                id SERIAL PRIMARY KEY,
+                username VARCHAR(50) UNIQUE NOT NULL,
+                password VARCHAR(255) NOT NULL,
+                name VARCHAR(50) NOT NULL,
+                surname VARCHAR(50) NOT NULL,
+                birthdate DATE NOT NULL,
+                gender VARCHAR(10) NOT NULL,
+                email VARCHAR(100) NOT NULL,
+                is_admin BOOLEAN NOT NULL
+            );
+
+            -- Widen password column for salted hashes on existing databases
+            ALTER TABLE users ALTER COLUMN password TYPE VARCHAR(255);
+
+            -- Move a pre-partitioning messages table aside; its rows are copied by migrateLegacyMessages()
+            DO $$
+            BEGIN
+                IF (SELECT relkind FROM pg_class WHERE oid = to_regclass('messages')) = 'r' THEN
+                    ALTER TABLE messages ALTER COLUMN id DROP DEFAULT;
+                    ALTER TABLE messages RENAME TO messages_legacy;
+                    ALTER TABLE messages_legacy RENAME CONSTRAINT messages_pkey TO messages_legacy_pkey;
+                    DROP INDEX IF EXISTS messages_receiver_id_idx, messages_sender_id_idx, messages_timestamp_idx;
+                END IF;
+            END $$;
+            DROP SEQUENCE IF EXISTS messages_id_seq;
+
+            -- Staging table for IMPORTUSERS; rows are validated on merge into users
+            CREATE UNLOGGED TABLE if not exists users_import (
+                batch_id BIGINT NOT NULL,
+                line INT NOT NULL,
+                username TEXT NOT NULL,
+                password TEXT NOT NULL,
+                name TEXT NOT NULL,
+                surname TEXT NOT NULL,
+                birthdate DATE NOT NULL,
+                gender TEXT NOT NULL,
+                email TEXT NOT NULL,
+                is_admin BOOLEAN NOT NULL
+            );
+            CREATE INDEX if not exists users_import_batch_idx ON users_import (batch_id, line);
+
+            -- Create messages table, partitioned by month; IDs are assigned by the server
+            CREATE TABLE if not exists messages (
+                id BIGINT NOT NULL,
+                sender_username VARCHAR(50),
+                receiver_username VARCHAR(50),
+                content TEXT NOT NULL,
+                timestamp TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                PRIMARY KEY (id, timestamp),
+                FOREIGN KEY (sender_username) REFERENCES users(username) ON DELETE SET NULL,
+                FOREIGN KEY (receiver_username) REFERENCES users(username) ON DELETE SET NULL
+            ) PARTITION BY RANGE (timestamp);
+            CREATE TABLE if not exists messages_default PARTITION OF messages DEFAULT;
+
+            -- Cursor indexes for inbox, outbox and sync
+            CREATE INDEX if not exists messages_receiver_id_idx ON messages (receiver_username, id);
+            CREATE INDEX if not exists messages_sender_id_idx ON messages (sender_username, id);
+            CREATE INDEX if not exists messages_timestamp_idx ON messages (timestamp);
+
+            -- Archive of expired messages, partitioned by month and never read by inbox or outbox queries
+            CREATE TABLE if not exists messages_archive (
+                id BIGINT NOT NULL,
+                sender_username VARCHAR(50),
+                receiver_username VARCHAR(50),
+                content TEXT NOT NULL,
+                timestamp TIMESTAMP NOT NULL
+            ) PARTITION BY RANGE (timestamp);
+            CREATE TABLE if not exists messages_archive_default PARTITION OF messages_archive DEFAULT;
+        """,
+        """
+            -- Live server nodes; a node without a recent heartbeat is out of the ring
+            CREATE TABLE cluster_nodes (
+                node_id INT PRIMARY KEY,
+                host VARCHAR(255) NOT NULL,
+                port INT NOT NULL,
+                link_port INT NOT NULL,
+                heartbeat TIMESTAMP NOT NULL
+            );
+        """,
+        """
+            -- Messages may live in another database than their users, so the users foreign keys cannot be enforced;
+            -- deleteUser() detaches the messages of a removed user instead
+            ALTER TABLE messages DROP CONSTRAINT if exists messages_sender_username_fkey;
+            ALTER TABLE messages DROP CONSTRAINT if exists messages_receiver_username_fkey;
+
+            -- Users placed on another message shard than their hash; previous_shard is set while a move is in progress
+            CREATE TABLE user_shards (
+                username VARCHAR(50) PRIMARY KEY,
+                shard INT NOT NULL,
+                previous_shard INT
+            );
+        """,
+        """
+            -- Messages not yet acknowledged by their receiver; batch_id is set while a batch is out for delivery
+            CREATE TABLE delivery_queue (
+                receiver_username VARCHAR(50) NOT NULL,
+                message_id BIGINT NOT NULL,
+                batch_id BIGINT,
+                attempts INT NOT NULL DEFAULT 0,
+                sent_at TIMESTAMP,
+                PRIMARY KEY (receiver_username, message_id)
+            );
+            CREATE INDEX delivery_queue_batch_idx ON delivery_queue (receiver_username, batch_id);
+        """,
+        """
+            -- Attachments and large message bodies; the content is a file in the blob directory
+            CREATE TABLE blobs (
+                id BIGINT PRIMARY KEY,
+                owner_username VARCHAR(50) NOT NULL,
+                receiver_username VARCHAR(50) NOT NULL,
+                name VARCHAR(255) NOT NULL,
+                size BIGINT NOT NULL,
+                sha256 CHAR(64) NOT NULL,
+                committed BOOLEAN NOT NULL DEFAULT FALSE,
+                created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+            );
+        """,
+        """
+            -- Client message IDs of recent SENDMSGs, kept on the shard of the message so both are stored in one statement
+            CREATE TABLE message_keys (
+                sender_username VARCHAR(50) NOT NULL,
+                client_msg_id VARCHAR(64) NOT NULL,
+                message_id BIGINT NOT NULL,
+                created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+                PRIMARY KEY (sender_username, client_msg_id)
+            );
+            CREATE INDEX message_keys_created_at_idx ON message_keys (created_at);
+        """,
+        """
+            -- Open uploads, counted per owner on UPLOAD and expired by age
+            CREATE INDEX blobs_open_owner_idx ON blobs (owner_username) WHERE NOT committed;
+            CREATE INDEX blobs_open_created_at_idx ON blobs (created_at) WHERE NOT committed;
+        """,
+        """
+            -- Number of message shards the hash placement was last computed with; see pinShards()
+            CREATE TABLE shard_layout (
+                id INT PRIMARY KEY CHECK (id = 0),
+                shards INT NOT NULL
+            );
+        """,
+        """
+            -- Cursor indexes led by the partition key, so a page is read partition by partition, oldest first,
+            -- and stops in the first partitions that fill it instead of probing every partition
+            CREATE INDEX messages_receiver_time_idx ON messages (receiver_username, timestamp, id);
+            CREATE INDEX messages_sender_time_idx ON messages (sender_username, timestamp, id);
+            DROP INDEX messages_receiver_id_idx, messages_sender_id_idx;
+        """,
+        """
+            -- Shared secret of the inter-node links when -Dcluster.secret is not set; see clusterSecret()
+            CREATE TABLE cluster_secret (
+                id INT PRIMARY KEY CHECK (id = 0),
+                secret VARCHAR(64) NOT NULL
+            );
+        """,
+    };
+    private final String dbUrl;
+    private final String dbUser;
+    private final String dbPassword;
+    private final ThreadLocal<Connection> connections = new ThreadLocal<>(); // One connection per database worker thread
+    private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_RETRY_MILLIS);
+
+    /**
+     * Constructor for Database.
+     *
+     * @param dbUrl      Database URL
+     * @param dbUser     Database user
+     * @param dbPassword Database password
+     */
+    public Database(String dbUrl, String dbUser, String dbPassword) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPassword = dbPassword; // Connections are opened lazily, by warmUp() or the first query of each thread
+    }
+
+    /**
+     * Returns the connection owned by the calling thread, opening it on first use.
+     * Every thread of the database stage therefore holds exactly one pooled connection.
+     * A connection broken by a database restart is closed by the driver and reopened here;
+     * if that fails, the circuit breaker opens and calls fail at once until a probe reconnects.
+     *
+     * @return JDBC connection of the calling thread
+     * @throws SQLException if a database access error occurs, with SQLState CircuitBreaker.UNAVAILABLE while the breaker is open
+     */
+    private Connection connection() throws SQLException {
+        if (!breaker.tryAcquire()) {
+            throw new SQLException("Database " + dbUrl + " is unavailable.", CircuitBreaker.UNAVAILABLE);
+        }
+        Connection connection = connections.get();
+        try {
+            if (breaker.isProbing() && connection != null && !connection.isValid(PROBE_TIMEOUT_SECONDS)) {
+                connection.close(); // Broken while the database was down
+            }
+            if (connection == null || connection.isClosed()) {
+                connection = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+                connections.set(connection);
+            }
+        } catch (SQLException e) {
+            breaker.recordFailure(e);
+            throw e;
+        }
+        if (breaker.isProbing()) {
+            breaker.recordSuccess();
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the circuit breaker guarding this database.
+     *
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Brings the schema up to date. When the schema_version table already records the latest
+     * migration this costs a single query and applies no migration; otherwise only the missing migrations
+     * are applied, in one transaction, under an advisory lock so concurrently starting servers
+     * do not race. Either way the monthly messages partitions ahead are created if missing,
+     * since the daily maintenance job first runs a day after startup.
+     *
+     * @return Number of migrations applied
+     * @throws SQLException if a database access error occurs
+     */
+    public int migrate() throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("migrate", null);
+        Connection connection = connection();
+        try (Statement stmt = connection.createStatement()) {
+            if (schemaVersion(stmt) < MIGRATIONS.length) {
+                connection.setAutoCommit(false);
+                try {
+                    stmt.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK + ")");
+                    stmt.executeUpdate("CREATE TABLE if not exists schema_version (version INT PRIMARY KEY, applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP)");
+                    int current = schemaVersion(stmt); // Another server may have migrated while this one waited for the lock
+                    for (int version = current + 1; version <= MIGRATIONS.length; version++) {
+                        stmt.executeUpdate(MIGRATIONS[version - 1]);
+                        if (version == 1) {
+                            migrateLegacyMessages();
+                        }
+                        stmt.executeUpdate("INSERT INTO schema_version (version) VALUES (" + version + ")");
+                        event.rows++;
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            ensureMessagePartitions(PARTITION_MONTHS_AHEAD);
+            return (int) event.rows;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw e;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Reads the latest applied migration.
+     *
+     * @param stmt Statement to run the query on
+     * @return Latest applied version, or 0 if the schema has never been versioned
+     * @throws SQLException if a database access error occurs
+     */
+    private static int schemaVersion(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("SELECT COALESCE(max(version), 0) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            if ("42P01".equals(e.getSQLState())) {
+                return 0; // No schema_version table yet
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the connection of the calling thread ahead of its first request.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void warmUp() throws SQLException {
+        connection();
+    }
+
+    /**
+     * Creates the monthly messages partitions from the current month up to some months ahead,
+     * so that new messages never land in the default partition.
+     *
+     * @param monthsAhead Number of future months to create
+     * @throws SQLException if a database access error occurs
+     */
+    public void ensureMessagePartitions(int monthsAhead) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("ensureMessagePartitions", null);
+        try {
+            YearMonth current = YearMonth.now();
+            for (int i = 0; i <= monthsAhead; i++) {
+                createMonthlyPartition("messages", current.plusMonths(i));
+            }
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Copies the rows of a pre-partitioning messages table into the partitioned table, then drops it.
+     * Runs inside the transaction of migration 1.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    private void migrateLegacyMessages() throws SQLException {
+        try (Statement stmt = connection().createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT to_regclass('messages_legacy') IS NOT NULL");
+            if (!rs.next() || !rs.getBoolean(1)) {
+                return;
+            }
+            rs = stmt.executeQuery("SELECT min(timestamp), max(timestamp) FROM messages_legacy");
+            if (rs.next() && rs.getTimestamp(1) != null) {
+                YearMonth last = YearMonth.from(rs.getTimestamp(2).toLocalDateTime());
+                for (YearMonth month = YearMonth.from(rs.getTimestamp(1).toLocalDateTime()); !month.isAfter(last); month = month.plusMonths(1)) {
+                    createMonthlyPartition("messages", month);
+                }
+            }
+            stmt.executeUpdate("INSERT INTO messages (id, sender_username, receiver_username, content, timestamp) "
+                    + "SELECT id, sender_username, receiver_username, content, COALESCE(timestamp, CURRENT_TIMESTAMP) FROM messages_legacy");
+            stmt.executeUpdate("DROP TABLE messages_legacy");
+        }
+    }
+
+    /**
+     * Inserts a default admin user if not exists.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void insertDefaultAdmin() throws SQLException {
+        try (PreparedStatement exists = connection().prepareStatement("SELECT 1 FROM users WHERE username = ?")) {
+            exists.setString(1, "alp");
+            if (exists.executeQuery().next()) {
+                return; // Skip hashing the default password on every start
+            }
+        }
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO users (username, password, name, surname, birthdate, gender, email, is_admin) VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (username) DO NOTHING")) {
+            stmt.setString(1, "alp");
+            stmt.setString(2, Credentials.hash("alp"));
+            stmt.setString(3, "alp");
+            stmt.setString(4, "kaplan");
+            stmt.setDate(5, java.sql.Date.valueOf("2003-01-01"));
+            stmt.setString(6, "male");
+            stmt.setString(7, "alp@domain.com");
+            stmt.setBoolean(8, true);  // true for admin
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up the stored credentials of a user.
+     *
+     * @param username Username
+     * @return Array of {stored password, is_admin}, or null if the user does not exist
+     * @throws SQLException if a database access error occurs
+     */
+    public String[] findCredentials(String username) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("findCredentials", username);
+        try (PreparedStatement stmt = connection().prepareStatement("SELECT password, is_admin FROM users WHERE username = ?")) {
+            stmt.setString(1, username);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                event.rows = 1;
+                return new String[]{rs.getString("password"), String.valueOf(rs.getBoolean("is_admin"))};
+            }
+            return null;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Replaces a legacy plaintext password with its hash, unless it has changed in the meantime.
+     *
+     * @param username  Username
+     * @param plaintext Plaintext password that was just verified
+     * @param hash      Hash of the plaintext password
+     * @throws SQLException if a database access error occurs
+     */
+    public void upgradePassword(String username, String plaintext, String hash) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("upgradePassword", username);
+        try (PreparedStatement stmt = connection().prepareStatement("UPDATE users SET password = ? WHERE username = ? AND password = ?")) {
+            stmt.setString(1, hash);
+            stmt.setString(2, username);
+            stmt.setString(3, plaintext);
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Converts a message cursor into a lower timestamp bound, so that partitions older than the cursor are pruned.
+     * Pages are ordered by timestamp, then ID, which is the ID order since an ID carries its creation time;
+     * ordering by the partition key lets the database read the partitions one after the other.
+     *
+     * @param afterId ID of the last message the client has seen
+     * @return Timestamp no later than that of any message with a greater ID
+     */
+    private Timestamp cursorTime(long afterId) {
+        if (afterId <= Integer.MAX_VALUE) {
+            return new Timestamp(0); // First page, or an ID from the legacy SERIAL column that carries no time
+        }
+        return new Timestamp(IdGenerator.timestampOf(afterId));
+    }
+
+    /**
+     * Reads a page of the inbox of a user, oldest first.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Inbox messages in ID order
+     * @throws SQLException if a database access error occurs
+     */
+    public List<Message> readInbox(String username, long afterId, int limit) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("readInbox", username);
+        try (PreparedStatement stmt = prepareInbox(username, afterId, limit)) {
+            List<Message> inbox = readMessages(stmt.executeQuery());
+            event.rows = inbox.size();
+            return inbox;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Encodes a page of the inbox of a user straight into a response line, without creating Message objects.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @param out      Buffer receiving the messages separated by ":::"
+     * @param rows     Receives the newest messages of the inbox in compact form, at most maxRows of them,
+     *                 if the page reaches the end of the inbox; or null
+     * @param maxRows  Maximum number of messages added to rows
+     * @return Number of messages
+     * @throws SQLException if a database access error occurs
+     */
+    public int appendInbox(String username, long afterId, int limit, StringBuilder out, List<CompactMessage> rows, int maxRows) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("readInbox", username);
+        try (PreparedStatement stmt = prepareInbox(username, afterId, limit)) {
+            ResultSet rs = stmt.executeQuery();
+            int count = appendMessages(rs, out);
+            if (rows != null && count < limit) {
+                rs.absolute(Math.max(count - maxRows, 0)); // Rows are buffered by the driver, so only the newest are converted
+                while (rs.next()) {
+                    rows.add(new CompactMessage(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5).getTime()));
+                }
+            }
+            event.rows = count;
+            return count;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Prepares the query of an inbox page.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Statement with every parameter set
+     * @throws SQLException if a database access error occurs
+     */
+    private PreparedStatement prepareInbox(String username, long afterId, int limit) throws SQLException {
+        PreparedStatement stmt = connection().prepareStatement(
+                "SELECT m.id, m.sender_username, m.receiver_username, m.content, m.timestamp FROM messages m WHERE m.receiver_username = ? AND m.id > ? AND m.timestamp >= ? ORDER BY m.timestamp, m.id LIMIT ?",
+                ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        stmt.setString(1, username);
+        stmt.setLong(2, afterId);
+        stmt.setTimestamp(3, cursorTime(afterId));
+        stmt.setInt(4, limit);
+        return stmt;
+    }
+
+    /**
+     * Reads a page of the outbox of a user, oldest first.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Outbox messages in ID order
+     * @throws SQLException if a database access error occurs
+     */
+    public List<Message> readOutbox(String username, long afterId, int limit) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("readOutbox", username);
+        try (PreparedStatement stmt = prepareOutbox(username, afterId, limit)) {
+            List<Message> outbox = readMessages(stmt.executeQuery());
+            event.rows = outbox.size();
+            return outbox;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Encodes a page of the outbox of a user straight into a response line, without creating Message objects.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @param out      Buffer receiving the messages separated by ":::"
+     * @return Number of messages
+     * @throws SQLException if a database access error occurs
+     */
+    public int appendOutbox(String username, long afterId, int limit, StringBuilder out) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("readOutbox", username);
+        try (PreparedStatement stmt = prepareOutbox(username, afterId, limit)) {
+            int count = appendMessages(stmt.executeQuery(), out);
+            event.rows = count;
+            return count;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Prepares the query of an outbox page.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Statement with every parameter set
+     * @throws SQLException if a database access error occurs
+     */
+    private PreparedStatement prepareOutbox(String username, long afterId, int limit) throws SQLException {
+        PreparedStatement stmt = connection().prepareStatement(
+                "SELECT m.id, m.sender_username, m.receiver_username, m.content, m.timestamp FROM messages m WHERE m.sender_username = ? AND m.id > ? AND m.timestamp >= ? ORDER BY m.timestamp, m.id LIMIT ?");
+        stmt.setString(1, username);
+        stmt.setLong(2, afterId);
+        stmt.setTimestamp(3, cursorTime(afterId));
+        stmt.setInt(4, limit);
+        return stmt;
+    }
+
+    /**
+     * Reads a page of all messages sent or received by a user, oldest first.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Messages in ID order
+     * @throws SQLException if a database access error occurs
+     */
+    public List<Message> syncMessages(String username, long afterId, int limit) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("syncMessages", username);
+        try (PreparedStatement stmt = prepareSync(username, afterId, limit)) {
+            List<Message> messages = readMessages(stmt.executeQuery());
+            event.rows = messages.size();
+            return messages;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Encodes a page of all messages sent or received by a user straight into a response line,
+     * without creating Message objects.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @param out      Buffer receiving the messages separated by ":::"
+     * @return Number of messages
+     * @throws SQLException if a database access error occurs
+     */
+    public int appendSync(String username, long afterId, int limit, StringBuilder out) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("syncMessages", username);
+        try (PreparedStatement stmt = prepareSync(username, afterId, limit)) {
+            int count = appendMessages(stmt.executeQuery(), out);
+            event.rows = count;
+            return count;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Prepares the query of a sync page.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Statement with every parameter set
+     * @throws SQLException if a database access error occurs
+     */
+    private PreparedStatement prepareSync(String username, long afterId, int limit) throws SQLException {
+        PreparedStatement stmt = connection().prepareStatement("""
+                (SELECT m.id, m.sender_username, m.receiver_username, m.content, m.timestamp FROM messages m
+                  WHERE m.receiver_username = ? AND m.id > ? AND m.timestamp >= ? ORDER BY m.timestamp, m.id LIMIT ?)
+                UNION ALL
+                (SELECT m.id, m.sender_username, m.receiver_username, m.content, m.timestamp FROM messages m
+                  WHERE m.sender_username = ? AND m.receiver_username IS DISTINCT FROM ? AND m.id > ? AND m.timestamp >= ? ORDER BY m.timestamp, m.id LIMIT ?)
+                ORDER BY id LIMIT ?""");
+        Timestamp since = cursorTime(afterId);
+        stmt.setString(1, username);
+        stmt.setLong(2, afterId);
+        stmt.setTimestamp(3, since);
+        stmt.setInt(4, limit);
+        stmt.setString(5, username);
+        stmt.setString(6, username);
+        stmt.setLong(7, afterId);
+        stmt.setTimestamp(8, since);
+        stmt.setInt(9, limit);
+        stmt.setInt(10, limit);
+        return stmt;
+    }
+
+    /**
+     * Reads the messages of a page query.
+     *
+     * @param rs Rows with the columns id, sender_username, receiver_username, content and timestamp
+     * @return Messages in row order
+     * @throws SQLException if a database access error occurs
+     */
+    private static List<Message> readMessages(ResultSet rs) throws SQLException {
+        List<Message> messages = new ArrayList<>();
+        while (rs.next()) {
+            messages.add(new Message(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5)));
+        }
+        return messages;
+    }
+
+    /**
+     * Encodes the messages of a page query in the format of Message.toString(), separated by ":::".
+     *
+     * @param rs   Rows with the columns id, sender_username, receiver_username, content and timestamp
+     * @param out  Buffer of the response line
+     * @return Number of messages
+     * @throws SQLException if a database access error occurs
+     */
+    private static int appendMessages(ResultSet rs, StringBuilder out) throws SQLException {
+        int count = 0;
+        while (rs.next()) {
+            long id = rs.getLong(1);
+            String sender = rs.getString(2);
+            String receiver = rs.getString(3);
+            String content = rs.getString(4);
+            Timestamp timestamp = rs.getTimestamp(5);
+            if (count++ > 0) {
+                out.append(":::");
+            }
+            Message.appendTo(out, id, sender, receiver, content, timestamp);
+        }
+        return count;
+    }
+
+    /**
+     * Stores a message and queues it for delivery to its receiver, in one statement.
+     * The receiver is checked beforehand with userExists(), on the database holding the users.
+     * With a client message ID, the ID is recorded in the same statement, and a message whose ID
+     * the sender has used before is not stored again: the response carries the original message ID.
+     *
+     * @param message     Message object, with its ID already assigned
+     * @param clientMsgId ID the client chose for the message, or null
+     * @return Send message response, "Message sent.:::id" on success
+     * @throws SQLException if a database access error occurs
+     */
+    public String sendMessage(Message message, String clientMsgId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("sendMessage", message.getSender());
+        try (PreparedStatement stmt = connection().prepareStatement(clientMsgId == null ? """
+                WITH sent AS (
+                    INSERT INTO messages (id, sender_username, receiver_username, content, timestamp) VALUES (?, ?, ?, ?, ?)
+                    RETURNING id, receiver_username)
+                INSERT INTO delivery_queue (receiver_username, message_id) SELECT receiver_username, id FROM sent""" : """
+                WITH key AS (
+                    INSERT INTO message_keys (sender_username, client_msg_id, message_id) VALUES (?, ?, ?)
+                    ON CONFLICT DO NOTHING
+                    RETURNING message_id),
+                sent AS (
+                    INSERT INTO messages (id, sender_username, receiver_username, content, timestamp)
+                    SELECT ?::bigint, ?, ?, ?, ?::timestamp FROM key
+                    RETURNING id, receiver_username)
+                INSERT INTO delivery_queue (receiver_username, message_id) SELECT receiver_username, id FROM sent""")) {
+            int i = 1;
+            if (clientMsgId != null) {
+                stmt.setString(i++, message.getSender());
+                stmt.setString(i++, clientMsgId);
+                stmt.setLong(i++, message.getId());
+            }
+            stmt.setLong(i++, message.getId());
+            stmt.setString(i++, message.getSender());
+            stmt.setString(i++, message.getReceiver());
+            stmt.setString(i++, message.getContent());
+            stmt.setTimestamp(i, message.getTimestamp());
+            event.rows = stmt.executeUpdate();
+            if (event.rows == 0 && clientMsgId != null) {
+                return "Message sent.:::" + findMessageKey(message.getSender(), clientMsgId); // A retry of a stored message
+            }
+            return "Message sent.:::" + message.getId();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Finds the message stored for a client message ID.
+     *
+     * @param sender      Sending user
+     * @param clientMsgId ID the client chose for the message
+     * @return Message ID
+     * @throws SQLException if a database access error occurs, or the key was purged meanwhile
+     */
+    private long findMessageKey(String sender, String clientMsgId) throws SQLException {
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT message_id FROM message_keys WHERE sender_username = ? AND client_msg_id = ?")) {
+            stmt.setString(1, sender);
+            stmt.setString(2, clientMsgId);
+            ResultSet rs = stmt.executeQuery();
+            if (!rs.next()) {
+                throw new SQLException("Message key " + clientMsgId + " of " + sender + " disappeared.");
+            }
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Forgets client message IDs older than the cutoff; retries of those messages are stored again.
+     *
+     * @param cutoff Keys recorded before this time are deleted
+     * @return Number of keys deleted
+     * @throws SQLException if a database access error occurs
+     */
+    public int purgeMessageKeys(Timestamp cutoff) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("purgeMessageKeys", null);
+        try (PreparedStatement stmt = connection().prepareStatement("DELETE FROM message_keys WHERE created_at < ?")) {
+            stmt.setTimestamp(1, cutoff);
+            event.rows = stmt.executeUpdate();
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Stores messages that may already exist, such as messages copied from another shard.
+     *
+     * @param messages Messages with their IDs assigned
+     * @return Number of messages that were not stored yet
+     * @throws SQLException if a database access error occurs
+     */
+    public int insertMessages(List<Message> messages) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("insertMessages", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO messages (id, sender_username, receiver_username, content, timestamp) VALUES (?, ?, ?, ?, ?) ON CONFLICT (id, timestamp) DO NOTHING")) {
+            for (Message message : messages) {
+                stmt.setLong(1, message.getId());
+                stmt.setString(2, message.getSender());
+                stmt.setString(3, message.getReceiver());
+                stmt.setString(4, message.getContent());
+                stmt.setTimestamp(5, message.getTimestamp());
+                stmt.addBatch();
+            }
+            for (int inserted : stmt.executeBatch()) {
+                event.rows += inserted;
+            }
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Stores spooled messages and queues them for delivery, in one statement.
+     * Messages that are already stored, e.g. by a replay interrupted by a crash, are neither stored nor queued again.
+     * Client message IDs are recorded like in sendMessage(); a message whose ID the sender has used
+     * meanwhile, e.g. by a retry stored before the replay, is not stored again.
+     *
+     * @param messages Messages with their IDs assigned
+     * @param keys     Client message IDs of the messages that carry one, by message ID
+     * @return Number of messages stored
+     * @throws SQLException if a database access error occurs
+     */
+    public int replayMessages(List<Message> messages, Map<Long, String> keys) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("replayMessages", null);
+        try (PreparedStatement stmt = connection().prepareStatement("""
+                WITH batch AS (
+                    SELECT * FROM unnest(?::bigint[], ?::varchar[], ?::varchar[], ?::text[], ?::timestamp[], ?::varchar[])
+                        AS b (id, sender_username, receiver_username, content, timestamp, client_msg_id)),
+                key AS (
+                    INSERT INTO message_keys (sender_username, client_msg_id, message_id)
+                    SELECT sender_username, client_msg_id, id FROM batch WHERE client_msg_id IS NOT NULL
+                    ON CONFLICT DO NOTHING
+                    RETURNING message_id),
+                sent AS (
+                    INSERT INTO messages (id, sender_username, receiver_username, content, timestamp)
+                    SELECT id, sender_username, receiver_username, content, timestamp FROM batch
+                    WHERE client_msg_id IS NULL OR id IN (SELECT message_id FROM key)
+                    ON CONFLICT (id, timestamp) DO NOTHING
+                    RETURNING id, receiver_username)
+                INSERT INTO delivery_queue (receiver_username, message_id) SELECT receiver_username, id FROM sent""")) {
+            Connection connection = connection();
+            stmt.setArray(1, connection.createArrayOf("bigint", messages.stream().map(Message::getId).toArray()));
+            stmt.setArray(2, connection.createArrayOf("varchar", messages.stream().map(Message::getSender).toArray()));
+            stmt.setArray(3, connection.createArrayOf("varchar", messages.stream().map(Message::getReceiver).toArray()));
+            stmt.setArray(4, connection.createArrayOf("text", messages.stream().map(Message::getContent).toArray()));
+            stmt.setArray(5, connection.createArrayOf("timestamp", messages.stream().map(Message::getTimestamp).toArray()));
+            stmt.setArray(6, connection.createArrayOf("varchar", messages.stream().map(message -> keys.get(message.getId())).toArray()));
+            event.rows = stmt.executeUpdate();
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Deletes inbox messages of a user, such as messages copied to another shard.
+     *
+     * @param username Receiver of the messages
+     * @param messages Messages to delete
+     * @return Number of messages deleted
+     * @throws SQLException if a database access error occurs
+     */
+    public int deleteMessages(String username, List<Message> messages) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("deleteMessages", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "DELETE FROM messages WHERE receiver_username = ? AND id = ANY (?)");
+             PreparedStatement queued = connection().prepareStatement(
+                "DELETE FROM delivery_queue WHERE receiver_username = ? AND message_id = ANY (?)")) {
+            Array ids = connection().createArrayOf("bigint", messages.stream().map(Message::getId).toArray(Long[]::new));
+            stmt.setString(1, username);
+            stmt.setArray(2, ids);
+            queued.setString(1, username);
+            queued.setArray(2, ids);
+            event.rows = stmt.executeUpdate();
+            queued.executeUpdate();
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Detaches the messages of a removed user, which keeps them readable by the other side.
+     *
+     * @param username Username of the removed user
+     * @throws SQLException if a database access error occurs
+     */
+    public void detachUser(String username) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("detachUser", username);
+        try (PreparedStatement sent = connection().prepareStatement("UPDATE messages SET sender_username = NULL WHERE sender_username = ?");
+             PreparedStatement received = connection().prepareStatement("UPDATE messages SET receiver_username = NULL WHERE receiver_username = ?");
+             PreparedStatement queued = connection().prepareStatement("DELETE FROM delivery_queue WHERE receiver_username = ?")) {
+            sent.setString(1, username);
+            received.setString(1, username);
+            queued.setString(1, username);
+            event.rows = sent.executeUpdate() + received.executeUpdate() + queued.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Claims the oldest undelivered messages of a user as a new delivery batch. Messages of a batch
+     * that was sent but not acknowledged within the redelivery timeout are claimed again; messages
+     * claimed maxAttempts times are given up on and stay readable from the inbox only.
+     *
+     * @param username         Receiver
+     * @param batchId          ID of the new batch
+     * @param limit            Maximum number of messages in the batch
+     * @param maxAttempts      Number of deliveries after which a message leaves the queue
+     * @param redeliveryMillis Time after which an unacknowledged batch is delivered again
+     * @return Messages of the batch in ID order; empty if nothing is waiting
+     * @throws SQLException if a database access error occurs
+     */
+    public List<Message> claimDeliveries(String username, long batchId, int limit, int maxAttempts, long redeliveryMillis) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("claimDeliveries", username);
+        try (PreparedStatement expire = connection().prepareStatement(
+                "DELETE FROM delivery_queue WHERE receiver_username = ? AND attempts >= ? AND (batch_id IS NULL OR sent_at < CURRENT_TIMESTAMP - ? * INTERVAL '1 millisecond')");
+             PreparedStatement claim = connection().prepareStatement("""
+                WITH claimed AS (
+                    UPDATE delivery_queue SET batch_id = ?, attempts = attempts + 1, sent_at = CURRENT_TIMESTAMP
+                    WHERE receiver_username = ? AND message_id IN (
+                        SELECT message_id FROM delivery_queue
+                         WHERE receiver_username = ? AND (batch_id IS NULL OR sent_at < CURRENT_TIMESTAMP - ? * INTERVAL '1 millisecond')
+                         ORDER BY message_id LIMIT ? FOR UPDATE SKIP LOCKED)
+                    RETURNING message_id)
+                SELECT c.message_id, m.sender_username, m.content, m.timestamp
+                  FROM claimed c LEFT JOIN messages m ON m.id = c.message_id AND m.receiver_username = ?
+                 ORDER BY c.message_id""");
+             PreparedStatement orphans = connection().prepareStatement(
+                "DELETE FROM delivery_queue WHERE receiver_username = ? AND message_id = ANY (?)")) {
+            expire.setString(1, username);
+            expire.setInt(2, maxAttempts);
+            expire.setLong(3, redeliveryMillis);
+            expire.executeUpdate();
+
+            claim.setLong(1, batchId);
+            claim.setString(2, username);
+            claim.setString(3, username);
+            claim.setLong(4, redeliveryMillis);
+            claim.setInt(5, limit);
+            claim.setString(6, username);
+            ResultSet rs = claim.executeQuery();
+            List<Message> batch = new ArrayList<>();
+            List<Long> missing = new ArrayList<>();
+            while (rs.next()) {
+                if (rs.getTimestamp("timestamp") == null) {
+                    missing.add(rs.getLong("message_id")); // Message removed by retention or a move
+                } else {
+                    batch.add(new Message(rs.getLong("message_id"), rs.getString("sender_username"), username, rs.getString("content"), rs.getTimestamp("timestamp")));
+                }
+            }
+            if (!missing.isEmpty()) {
+                orphans.setString(1, username);
+                orphans.setArray(2, connection().createArrayOf("bigint", missing.toArray(new Long[0])));
+                orphans.executeUpdate();
+            }
+            event.rows = batch.size();
+            return batch;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Removes the messages of an acknowledged batch from the delivery queue.
+     *
+     * @param username Receiver
+     * @param batchId  Acknowledged batch
+     * @return Number of messages acknowledged
+     * @throws SQLException if a database access error occurs
+     */
+    public int ackDeliveries(String username, long batchId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("ackDeliveries", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "DELETE FROM delivery_queue WHERE receiver_username = ? AND batch_id = ?")) {
+            stmt.setString(1, username);
+            stmt.setLong(2, batchId);
+            event.rows = stmt.executeUpdate();
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Returns the messages of an unacknowledged batch to the queue, so the next session gets them at once.
+     *
+     * @param username Receiver
+     * @param batchId  Batch whose session closed
+     * @throws SQLException if a database access error occurs
+     */
+    public void releaseDeliveries(String username, long batchId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("releaseDeliveries", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "UPDATE delivery_queue SET batch_id = NULL WHERE receiver_username = ? AND batch_id = ?")) {
+            stmt.setString(1, username);
+            stmt.setLong(2, batchId);
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Finds which of the given inbox messages are still waiting for delivery.
+     *
+     * @param username Receiver
+     * @param messages Inbox messages
+     * @return IDs of the messages in the delivery queue
+     * @throws SQLException if a database access error occurs
+     */
+    public List<Long> queuedDeliveries(String username, List<Message> messages) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("queuedDeliveries", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT message_id FROM delivery_queue WHERE receiver_username = ? AND message_id = ANY (?)")) {
+            stmt.setString(1, username);
+            stmt.setArray(2, connection().createArrayOf("bigint", messages.stream().map(Message::getId).toArray(Long[]::new)));
+            ResultSet rs = stmt.executeQuery();
+            List<Long> ids = new ArrayList<>();
+            while (rs.next()) {
+                ids.add(rs.getLong(1));
+            }
+            event.rows = ids.size();
+            return ids;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Queues messages for delivery, such as undelivered messages copied from another shard.
+     *
+     * @param username   Receiver
+     * @param messageIds IDs of the messages
+     * @throws SQLException if a database access error occurs
+     */
+    public void enqueueDeliveries(String username, List<Long> messageIds) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("enqueueDeliveries", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO delivery_queue (receiver_username, message_id) SELECT ?, unnest(?) ON CONFLICT DO NOTHING")) {
+            stmt.setString(1, username);
+            stmt.setArray(2, connection().createArrayOf("bigint", messageIds.toArray(new Long[0])));
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Loads the users placed on another message shard than their hash.
+     *
+     * @return Username -> {shard, previous shard or -1 if no move is in progress}
+     * @throws SQLException if a database access error occurs
+     */
+    public Map<String, int[]> loadShardOverrides() throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("loadShardOverrides", null);
+        try (Statement stmt = connection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT username, shard, COALESCE(previous_shard, -1) FROM user_shards")) {
+            Map<String, int[]> overrides = new HashMap<>();
+            while (rs.next()) {
+                overrides.put(rs.getString(1), new int[] {rs.getInt(2), rs.getInt(3)});
+            }
+            event.rows = overrides.size();
+            return overrides;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Places a user on a message shard.
+     *
+     * @param username      Username
+     * @param shard         Shard new messages of the user are stored on
+     * @param previousShard Shard the user's messages are being moved from, or -1 once the move is complete
+     * @throws SQLException if a database access error occurs
+     */
+    public void setShard(String username, int shard, int previousShard) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("setShard", username);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO user_shards (username, shard, previous_shard) VALUES (?, ?, ?) "
+                        + "ON CONFLICT (username) DO UPDATE SET shard = EXCLUDED.shard, previous_shard = EXCLUDED.previous_shard")) {
+            stmt.setString(1, username);
+            stmt.setInt(2, shard);
+            if (previousShard < 0) {
+                stmt.setNull(3, Types.INTEGER);
+            } else {
+                stmt.setInt(3, previousShard);
+            }
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Records the number of message shards. When it grew since the last start, every user whose hash
+     * placement changes is pinned in user_shards to the shard their messages are on, so adding a shard
+     * moves no existing inbox; only new users are hashed onto the new shard. Called on shard 0.
+     *
+     * @param shards Number of configured message shards
+     * @return Number of users pinned
+     * @throws SQLException if a database access error occurs
+     * @throws IllegalStateException if fewer shards are configured than recorded
+     */
+    public int pinShards(int shards) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("pinShards", null);
+        try {
+            Connection connection = connection();
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement();
+                 PreparedStatement pin = connection.prepareStatement(
+                         "INSERT INTO user_shards (username, shard) VALUES (?, ?) ON CONFLICT (username) DO NOTHING")) {
+                stmt.executeUpdate("INSERT INTO shard_layout (id, shards) VALUES (0, " + shards + ") ON CONFLICT (id) DO NOTHING");
+                ResultSet rs = stmt.executeQuery("SELECT shards FROM shard_layout WHERE id = 0 FOR UPDATE"); // Serializes nodes starting together
+                rs.next();
+                int previous = rs.getInt(1);
+                if (shards < previous) {
+                    throw new IllegalStateException(previous + " message shards are recorded but only " + shards + " are configured; shards cannot be removed.");
+                }
+                if (shards > previous) {
+                    rs = stmt.executeQuery("SELECT username FROM users u WHERE NOT EXISTS (SELECT 1 FROM user_shards s WHERE s.username = u.username)");
+                    while (rs.next()) {
+                        String username = rs.getString(1);
+                        int shard = Shards.hashShard(username, previous);
+                        if (shard != Shards.hashShard(username, shards)) {
+                            pin.setString(1, username);
+                            pin.setInt(2, shard);
+                            pin.addBatch();
+                            event.rows++;
+                        }
+                    }
+                    pin.executeBatch();
+                    stmt.executeUpdate("UPDATE shard_layout SET shards = " + shards + " WHERE id = 0");
+                }
+                connection.commit();
+                return (int) event.rows;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Deletes, or moves to the archive, one batch of the messages in the default partition older than the cutoff.
+     * Monthly partitions only expire as a whole, see dropExpiredPartitions(); the default partition holds the
+     * rare rows of a month that had no partition yet, which can only be expired row by row.
+     *
+     * @param cutoff    Messages with an older timestamp are expired
+     * @param batchSize Maximum number of messages to remove
+     * @param archive   Whether to move the messages to messages_archive instead of dropping them
+     * @return Number of messages removed
+     * @throws SQLException if a database access error occurs
+     */
+    public int purgeBefore(Timestamp cutoff, int batchSize, boolean archive) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("purgeBefore", null);
+        try (PreparedStatement stmt = connection().prepareStatement(purgeSql(
+                "SELECT id FROM messages_default WHERE timestamp < ? ORDER BY timestamp LIMIT ?", archive))) {
+            stmt.setTimestamp(1, cutoff);
+            stmt.setInt(2, batchSize);
+            ResultSet rs = stmt.executeQuery();
+            event.rows = rs.next() ? rs.getLong(1) : 0;
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Removes every monthly messages partition that lies entirely before the cutoff.
+     * Detaching a partition is a catalog change, so a whole month expires without a large DELETE.
+     * In archive mode the partition is attached to messages_archive as a whole; the few rows the
+     * per-user cap archived for that month before are moved into it first, so the attach never overlaps.
+     *
+     * @param cutoff  Messages with an older timestamp are expired
+     * @param archive Whether to move the partitions to messages_archive instead of dropping them
+     * @return Number of partitions removed
+     * @throws SQLException if a database access error occurs
+     */
+    public int dropExpiredPartitions(Timestamp cutoff, boolean archive) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("dropExpiredPartitions", null);
+        try {
+            List<String> expired = new ArrayList<>();
+            YearMonth cutoffMonth = YearMonth.from(cutoff.toLocalDateTime());
+            try (Statement stmt = connection().createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+                        + "WHERE i.inhparent = 'messages'::regclass AND c.relname ~ '^messages_y[0-9]{4}m[0-9]{2}$'");
+                while (rs.next()) {
+                    String partition = rs.getString(1);
+                    YearMonth month = YearMonth.of(Integer.parseInt(partition.substring(10, 14)), Integer.parseInt(partition.substring(15, 17)));
+                    if (month.isBefore(cutoffMonth)) {
+                        expired.add(partition);
+                    }
+                }
+                for (String partition : expired) {
+                    if (!archive) {
+                        stmt.executeUpdate("ALTER TABLE messages DETACH PARTITION " + partition);
+                        stmt.executeUpdate("DROP TABLE " + partition);
+                        continue;
+                    }
+                    YearMonth month = YearMonth.of(Integer.parseInt(partition.substring(10, 14)), Integer.parseInt(partition.substring(15, 17)));
+                    archivePartition(stmt, partition, month);
+                }
+                if (!expired.isEmpty()) {
+                    // Queue rows of the detached months; message IDs are time-ordered, so they all sort before the cutoff month
+                    long firstId = IdGenerator.firstIdAt(Timestamp.valueOf(cutoffMonth.atDay(1).atStartOfDay()).getTime());
+                    stmt.executeUpdate("DELETE FROM delivery_queue WHERE message_id < " + firstId);
+                }
+            }
+            return expired.size();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
 
     /**
-     * Constructor for Database.
+     * Moves one expired monthly partition from messages to messages_archive in a single transaction.
      *
-     * @param dbUrl      Database URL
-     * @param dbUser     Database user
-     * @param dbPassword Database password
+     * @param stmt      Statement of this thread's connection
+     * @param partition Partition of messages
+     * @param month     Month covered by the partition
+     * @throws SQLException if a database access error occurs; the partition then stays in messages
+     */
+    private void archivePartition(Statement stmt, String partition, YearMonth month) throws SQLException {
+        String archived = "messages_archive" + partition.substring("messages".length());
+        String from = "'" + month.atDay(1) + "'";
+        String to = "'" + month.plusMonths(1).atDay(1) + "'";
+        Connection connection = connection();
+        connection.setAutoCommit(false);
+        try {
+            stmt.executeUpdate("ALTER TABLE messages DETACH PARTITION " + partition);
+            ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + archived + "') IS NOT NULL");
+            if (rs.next() && rs.getBoolean(1)) {
+                // Created for per-user cap purges by earlier versions
+                stmt.executeUpdate("ALTER TABLE messages_archive DETACH PARTITION " + archived);
+                stmt.executeUpdate("INSERT INTO " + partition + " SELECT id, sender_username, receiver_username, content, timestamp FROM " + archived);
+                stmt.executeUpdate("DROP TABLE " + archived);
+            }
+            stmt.executeUpdate("WITH capped AS (DELETE FROM messages_archive_default WHERE timestamp >= " + from + " AND timestamp < " + to
+                    + " RETURNING id, sender_username, receiver_username, content, timestamp) INSERT INTO " + partition + " SELECT * FROM capped");
+            stmt.executeUpdate("ALTER TABLE messages_archive ATTACH PARTITION " + partition + " FOR VALUES FROM (" + from + ") TO (" + to + ")");
+            stmt.executeUpdate("ALTER TABLE " + partition + " RENAME TO " + archived);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Records a heartbeat of a cluster node. The node ID is only taken over from a different
+     * host or port once the previous holder has missed its heartbeats for longer than the TTL.
+     *
+     * @param node      This node
+     * @param ttlMillis Heartbeat age after which a node counts as gone
+     * @return true if the heartbeat was recorded, false if another live node holds the ID
      * @throws SQLException if a database access error occurs
      */
-    public Database(String dbUrl, String dbUser, String dbPassword) throws SQLException {
-        dbConnection = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
+    public boolean heartbeat(Cluster.Node node, long ttlMillis) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("heartbeat", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO cluster_nodes (node_id, host, port, link_port, heartbeat) VALUES (?, ?, ?, ?, CURRENT_TIMESTAMP) "
+                        + "ON CONFLICT (node_id) DO UPDATE SET host = EXCLUDED.host, port = EXCLUDED.port, link_port = EXCLUDED.link_port, heartbeat = EXCLUDED.heartbeat "
+                        + "WHERE (cluster_nodes.host = EXCLUDED.host AND cluster_nodes.port = EXCLUDED.port) "
+                        + "OR cluster_nodes.heartbeat < CURRENT_TIMESTAMP - ? * INTERVAL '1 millisecond'")) {
+            stmt.setInt(1, node.getId());
+            stmt.setString(2, node.getHost());
+            stmt.setInt(3, node.getPort());
+            stmt.setInt(4, node.getLinkPort());
+            stmt.setLong(5, ttlMillis);
+            event.rows = stmt.executeUpdate();
+            return event.rows == 1;
+        } finally {
+            Trace.finishSql(event);
+        }
     }
 
     /**
-     * Executes the initial SQL script to create tables.
+     * Lists the cluster nodes with a recent heartbeat.
      *
+     * @param ttlMillis Heartbeat age after which a node counts as gone
+     * @return Live nodes
      * @throws SQLException if a database access error occurs
      */
-    public void executeInitialScript() throws SQLException {
-        String sql = """
-            -- Create users table
-            CREATE TABLE if not exists users (
-                id SERIAL PRIMARY KEY,
-                username VARCHAR(50) UNIQUE NOT NULL,
-                password VARCHAR(50) NOT NULL,
-                name VARCHAR(50) NOT NULL,
-                surname VARCHAR(50) NOT NULL,
-                birthdate DATE NOT NULL,
-                gender VARCHAR(10) NOT NULL,
-                email VARCHAR(100) NOT NULL,
-                is_admin BOOLEAN NOT NULL
-            );
+    public List<Cluster.Node> liveNodes(long ttlMillis) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("liveNodes", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT node_id, host, port, link_port FROM cluster_nodes WHERE heartbeat >= CURRENT_TIMESTAMP - ? * INTERVAL '1 millisecond'")) {
+            stmt.setLong(1, ttlMillis);
+            ResultSet rs = stmt.executeQuery();
+            List<Cluster.Node> nodes = new ArrayList<>();
+            while (rs.next()) {
+                nodes.add(new Cluster.Node(rs.getInt(1), rs.getString(2), rs.getInt(3), rs.getInt(4)));
+            }
+            event.rows = nodes.size();
+            return nodes;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
 
-            -- Create messages table
-            CREATE TABLE if not exists messages (
-                id SERIAL PRIMARY KEY,
-                sender_username VARCHAR(50),
-                receiver_username VARCHAR(50),
-                content TEXT NOT NULL,
-                timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
-                FOREIGN KEY (sender_username) REFERENCES users(username) ON DELETE SET NULL,
-                FOREIGN KEY (receiver_username) REFERENCES users(username) ON DELETE SET NULL
-            );
-        """;
+    /**
+     * Removes a cluster node, so the other nodes drop it from their rings on their next heartbeat.
+     *
+     * @param nodeId Node ID
+     * @throws SQLException if a database access error occurs
+     */
+    public void leaveCluster(int nodeId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("leaveCluster", null);
+        try (PreparedStatement stmt = connection().prepareStatement("DELETE FROM cluster_nodes WHERE node_id = ?")) {
+            stmt.setInt(1, nodeId);
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
 
-        try (Statement stmt = dbConnection.createStatement()) {
-            stmt.executeUpdate(sql);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw e;
+    /**
+     * Returns the shared secret of the inter-node links. The first node to ask stores its candidate,
+     * so every node of the cluster uses the same secret.
+     *
+     * @param candidate Random secret stored if none is stored yet
+     * @return Stored secret
+     * @throws SQLException if a database access error occurs
+     */
+    public String clusterSecret(String candidate) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("clusterSecret", null);
+        try (PreparedStatement insert = connection().prepareStatement(
+                "INSERT INTO cluster_secret (id, secret) VALUES (0, ?) ON CONFLICT (id) DO NOTHING");
+             PreparedStatement select = connection().prepareStatement("SELECT secret FROM cluster_secret WHERE id = 0")) {
+            insert.setString(1, candidate);
+            insert.executeUpdate();
+            ResultSet rs = select.executeQuery();
+            rs.next();
+            event.rows = 1;
+            return rs.getString(1);
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Inserts a default admin user if not exists.
+     * Records a new upload.
      *
+     * @param blob Blob metadata
      * @throws SQLException if a database access error occurs
      */
-    public void insertDefaultAdmin() throws SQLException {
-        try (PreparedStatement stmt = dbConnection.prepareStatement(
-                "INSERT INTO users (username, password, name, surname, birthdate, gender, email, is_admin) VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT (username) DO NOTHING")) {
-            stmt.setString(1, "alp");
-            stmt.setString(2, "alp");
-            stmt.setString(3, "alp");
-            stmt.setString(4, "kaplan");
-            stmt.setDate(5, java.sql.Date.valueOf("2003-01-01"));
-            stmt.setString(6, "male");
-            stmt.setString(7, "alp@domain.com");
-            stmt.setBoolean(8, true);  // true for admin
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            throw e;
+    public void createBlob(BlobStore.Blob blob) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("createBlob", blob.getOwner());
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "INSERT INTO blobs (id, owner_username, receiver_username, name, size, sha256) VALUES (?, ?, ?, ?, ?, ?)")) {
+            stmt.setLong(1, blob.getId());
+            stmt.setString(2, blob.getOwner());
+            stmt.setString(3, blob.getReceiver());
+            stmt.setString(4, blob.getName());
+            stmt.setLong(5, blob.getSize());
+            stmt.setString(6, blob.getSha256());
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Authenticates a user.
+     * Finds the metadata of a blob.
      *
-     * @param username Username
-     * @param password Password
-     * @return Authentication response
+     * @param id Blob ID
+     * @return Blob metadata, or null if there is no such blob
+     * @throws SQLException if a database access error occurs
      */
-    public String authenticate(String username, String password) {
-        try (PreparedStatement stmt = dbConnection.prepareStatement("SELECT password, is_admin FROM users WHERE username = ?")) {
-            stmt.setString(1, username);
+    public BlobStore.Blob findBlob(long id) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("findBlob", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT owner_username, receiver_username, name, size, sha256, committed FROM blobs WHERE id = ?")) {
+            stmt.setLong(1, id);
             ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                String storedPassword = rs.getString("password");
-                boolean isAdmin = rs.getBoolean("is_admin");
-                if (storedPassword.equals(password)) {
-                    return "Authenticated:::" + isAdmin;
-                }
+            if (!rs.next()) {
+                return null;
             }
-            return "Authentication Failed:::false"; // Default to non-admin for failed authentication
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred during authentication.";
+            event.rows = 1;
+            return new BlobStore.Blob(id, rs.getString(1), rs.getString(2), rs.getString(3), rs.getLong(4), rs.getString(5), rs.getBoolean(6));
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Joins a list of strings with ":::" as a separator.
+     * Counts the uploads of a user that have not been committed yet.
      *
-     * @param list List of strings to join
-     * @return A single string with elements separated by ":::"
+     * @param owner Uploading user
+     * @return Number of open uploads
+     * @throws SQLException if a database access error occurs
      */
-    private String joinWithSeparator(List<String> list) {
-        return String.join(":::", list);
+    public int countOpenUploads(String owner) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("countOpenUploads", owner);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT count(*) FROM blobs WHERE owner_username = ? AND NOT committed")) {
+            stmt.setString(1, owner);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            event.rows = 1;
+            return rs.getInt(1);
+        } finally {
+            Trace.finishSql(event);
+        }
     }
 
     /**
-     * Reads the inbox of a user.
+     * Forgets uploads started before the cutoff and never committed.
      *
-     * @param username Username
-     * @return Inbox messages as a single string separated by ":::"
+     * @param cutoff Uploads started before this time are deleted
+     * @return IDs of the deleted uploads
+     * @throws SQLException if a database access error occurs
      */
-    public String readInbox(String username) {
-        try (PreparedStatement stmt = dbConnection.prepareStatement(
-                "SELECT m.content, m.sender_username, m.timestamp FROM messages m WHERE m.receiver_username = ?")) {
-            stmt.setString(1, username);
+    public List<Long> expireUploads(Timestamp cutoff) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("expireUploads", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "DELETE FROM blobs WHERE NOT committed AND created_at < ? RETURNING id")) {
+            stmt.setTimestamp(1, cutoff);
             ResultSet rs = stmt.executeQuery();
-            List<String> inbox = new ArrayList<>();
+            List<Long> ids = new ArrayList<>();
             while (rs.next()) {
-                Message message = new Message(rs.getString("sender_username"), username, rs.getString("content"), rs.getTimestamp("timestamp"));
-                inbox.add(message.toString());
+                ids.add(rs.getLong(1));
             }
-            return joinWithSeparator(inbox);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred while reading the inbox.";
+            event.rows = ids.size();
+            return ids;
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Reads the outbox of a user.
+     * Marks an upload as complete, so it can be downloaded.
      *
-     * @param username Username
-     * @return Outbox messages as a single string separated by ":::"
+     * @param id Blob ID
+     * @throws SQLException if a database access error occurs
      */
-    public String readOutbox(String username) {
-        try (PreparedStatement stmt = dbConnection.prepareStatement(
-                "SELECT m.content, m.receiver_username, m.timestamp FROM messages m WHERE m.sender_username = ?")) {
-            stmt.setString(1, username);
+    public void commitBlob(long id) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("commitBlob", null);
+        try (PreparedStatement stmt = connection().prepareStatement("UPDATE blobs SET committed = TRUE WHERE id = ?")) {
+            stmt.setLong(1, id);
+            event.rows = stmt.executeUpdate();
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Finds users whose inbox holds more messages than the cap.
+     *
+     * @param cap Maximum number of messages kept per user
+     * @return Usernames over the cap
+     * @throws SQLException if a database access error occurs
+     */
+    public List<String> findUsersOverCap(int cap) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("findUsersOverCap", null);
+        try (PreparedStatement stmt = connection().prepareStatement(
+                "SELECT receiver_username FROM messages WHERE receiver_username IS NOT NULL GROUP BY receiver_username HAVING count(*) > ?")) {
+            stmt.setInt(1, cap);
             ResultSet rs = stmt.executeQuery();
-            List<String> outbox = new ArrayList<>();
+            List<String> users = new ArrayList<>();
             while (rs.next()) {
-                Message message = new Message(username, rs.getString("receiver_username"), rs.getString("content"), rs.getTimestamp("timestamp"));
-                outbox.add(message.toString());
+                users.add(rs.getString(1));
             }
-            return joinWithSeparator(outbox);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred while reading the outbox.";
+            event.rows = users.size();
+            return users;
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Sends a message.
+     * Deletes, or moves to the archive, one batch of the oldest inbox messages of a user beyond the cap.
      *
-     * @param message Message object
-     * @return Send message response
+     * @param username  Username
+     * @param cap       Number of newest messages to keep
+     * @param batchSize Maximum number of messages to remove
+     * @param archive   Whether to move the messages to messages_archive instead of dropping them
+     * @return Number of messages removed
+     * @throws SQLException if a database access error occurs
      */
-    public String sendMessage(Message message) {
-        try {
-            // Check if the receiver exists in the database
-            int receiverId = getUserIdByUsername(message.getReceiver());
-            if (receiverId == -1) {
-                return "Error: Receiver does not exist.";
-            }
-
-            // Insert the message into the messages table
-            try (PreparedStatement stmt = dbConnection.prepareStatement(
-                    "INSERT INTO messages (sender_username, receiver_username, content, timestamp) VALUES (?, ?, ?, ?)")) {
-                stmt.setString(1, message.getSender());
-                stmt.setString(2, message.getReceiver());
-                stmt.setString(3, message.getContent());
-                stmt.setTimestamp(4, message.getTimestamp());
-                stmt.executeUpdate();
-                return "Message sent.";
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return "An error occurred while sending the message.";
-            }
+    public int purgeOverCap(String username, int cap, int batchSize, boolean archive) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("purgeOverCap", username);
+        try (PreparedStatement stmt = connection().prepareStatement(purgeSql(
+                "SELECT id FROM messages WHERE receiver_username = ? ORDER BY timestamp DESC, id DESC OFFSET ? LIMIT ?", archive))) {
+            stmt.setString(1, username);
+            stmt.setInt(2, cap);
+            stmt.setInt(3, batchSize);
+            ResultSet rs = stmt.executeQuery();
+            event.rows = rs.next() ? rs.getLong(1) : 0;
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Creates the partition of a table for one month, if it does not exist yet.
+     *
+     * @param table Partitioned parent table
+     * @param month Month covered by the partition
+     * @throws SQLException if a database access error occurs
+     */
+    private void createMonthlyPartition(String table, YearMonth month) throws SQLException {
+        String partition = String.format("%s_y%04dm%02d", table, month.getYear(), month.getMonthValue());
+        try (Statement stmt = connection().createStatement()) {
+            stmt.executeUpdate("CREATE TABLE if not exists " + partition + " PARTITION OF " + table
+                    + " FOR VALUES FROM ('" + month.atDay(1) + "') TO ('" + month.plusMonths(1).atDay(1) + "')");
         } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred while sending the message.";
+            // Rows of this month already sit in the default partition; they stay there
+            if (!"23514".equals(e.getSQLState())) {
+                throw e;
+            }
         }
     }
 
+    /**
+     * Builds the statement that removes the messages selected by a subquery, along with their
+     * delivery queue rows, so the queue of a user who never logs in again does not outgrow the inbox.
+     *
+     * @param selectIds Subquery returning the IDs to remove
+     * @param archive   Whether to copy the removed rows into messages_archive
+     * @return SQL query returning the number of removed messages
+     */
+    private String purgeSql(String selectIds, boolean archive) {
+        return "WITH expired AS (DELETE FROM messages WHERE id IN (" + selectIds + ") "
+                + "RETURNING id, sender_username, receiver_username, content, timestamp), "
+                + "queued AS (DELETE FROM delivery_queue q USING expired e WHERE q.receiver_username = e.receiver_username AND q.message_id = e.id)"
+                + (archive ? ", archived AS (INSERT INTO messages_archive SELECT * FROM expired)" : "")
+                + " SELECT count(*) FROM expired";
+    }
+
     /**
      * Gets the user ID by username.
      *
@@ -205,7 +1536,7 @@ public class Database {
      * @throws SQLException if a database access error occurs
      */
     private int getUserIdByUsername(String username) throws SQLException {
-        try (PreparedStatement stmt = dbConnection.prepareStatement(
+        try (PreparedStatement stmt = connection().prepareStatement(
                 "SELECT id FROM users WHERE username = ?")) {
             stmt.setString(1, username);
             ResultSet rs = stmt.executeQuery();
@@ -217,33 +1548,145 @@ public class Database {
         }
     }
 
+    /**
+     * Checks whether a user exists.
+     *
+     * @param username Username
+     * @return true if the user exists
+     * @throws SQLException if a database access error occurs
+     */
+    public boolean userExists(String username) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("userExists", username);
+        try {
+            return getUserIdByUsername(username) != -1;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
     /**
      * Creates a new user.
      *
-     * @param user User object
+     * @param user User object, with its password already hashed
      * @return Create user response
      */
     public String createUser(User user) throws SQLException {
-        if (getUserIdByUsername(user.getUsername()) == -1) {
-            try (PreparedStatement stmt = dbConnection.prepareStatement(
-                    "INSERT INTO users (username, password, name, surname, birthdate, gender, email, is_admin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
-                stmt.setString(1, user.getUsername());
-                stmt.setString(2, user.getPassword());
-                stmt.setString(3, user.getName());
-                stmt.setString(4, user.getSurname());
-                stmt.setDate(5, user.getBirthdate());
-                stmt.setString(6, user.getGender());
-                stmt.setString(7, user.getEmail());
-                stmt.setBoolean(8, user.isAdmin());
-                stmt.executeUpdate();
-                return "User created successfully.";
+        Trace.SqlEvent event = Trace.startSql("createUser", user.getUsername());
+        try {
+            if (getUserIdByUsername(user.getUsername()) == -1) {
+                try (PreparedStatement stmt = connection().prepareStatement(
+                        "INSERT INTO users (username, password, name, surname, birthdate, gender, email, is_admin) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+                    stmt.setString(1, user.getUsername());
+                    stmt.setString(2, user.getPassword());
+                    stmt.setString(3, user.getName());
+                    stmt.setString(4, user.getSurname());
+                    stmt.setDate(5, user.getBirthdate());
+                    stmt.setString(6, user.getGender());
+                    stmt.setString(7, user.getEmail());
+                    stmt.setBoolean(8, user.isAdmin());
+                    event.rows = stmt.executeUpdate();
+                    return "User created successfully.";
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    return "An error occurred while creating the user.";
+                }
+            }
+            else {
+                return "User with the same username already exists.";
+            }
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Loads a chunk of imported users into the staging table with COPY.
+     *
+     * @param csv Rows in CSV format: batch_id, line, username, password, name, surname, birthdate, gender, email, is_admin
+     * @return Number of rows loaded
+     * @throws SQLException if a database access error occurs
+     */
+    public long copyUsersToStaging(String csv) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("copyUsersToStaging", null);
+        try {
+            try {
+                CopyManager copy = connection().unwrap(PGConnection.class).getCopyAPI();
+                event.rows = copy.copyIn("COPY users_import (batch_id, line, username, password, name, surname, birthdate, gender, email, is_admin) "
+                        + "FROM STDIN WITH (FORMAT csv)", new StringReader(csv));
+                return event.rows;
+            } catch (IOException e) {
+                throw new SQLException("Could not stream imported users.", e);
+            }
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Merges a staged import into the users table. The first row of each username wins;
+     * existing users are left untouched.
+     *
+     * @param batchId ID of the import
+     * @return Rejected rows in the format "line N: reason", in line order
+     * @throws SQLException if a database access error occurs
+     */
+    public List<String> mergeImportedUsers(long batchId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("mergeImportedUsers", null);
+        try {
+            Connection connection = connection();
+            connection.setAutoCommit(false);
+            try (PreparedStatement merge = connection.prepareStatement("""
+                    WITH firsts AS (
+                        SELECT DISTINCT ON (username) * FROM users_import WHERE batch_id = ? ORDER BY username, line
+                    ), inserted AS (
+                        INSERT INTO users (username, password, name, surname, birthdate, gender, email, is_admin)
+                        SELECT username, password, name, surname, birthdate, gender, email, is_admin FROM firsts
+                        ON CONFLICT (username) DO NOTHING
+                        RETURNING username
+                    )
+                    SELECT s.line, CASE WHEN f.line IS NULL THEN 'duplicate username in import' ELSE 'username already exists' END
+                    FROM users_import s LEFT JOIN firsts f ON f.line = s.line
+                    WHERE s.batch_id = ? AND NOT (f.line IS NOT NULL AND EXISTS (SELECT 1 FROM inserted i WHERE i.username = s.username))
+                    ORDER BY s.line""");
+                 PreparedStatement cleanup = connection.prepareStatement("DELETE FROM users_import WHERE batch_id = ?")) {
+                merge.setLong(1, batchId);
+                merge.setLong(2, batchId);
+                ResultSet rs = merge.executeQuery();
+                List<String> rejects = new ArrayList<>();
+                while (rs.next()) {
+                    rejects.add("line " + rs.getInt(1) + ": " + rs.getString(2));
+                }
+                event.rows = rejects.size();
+                cleanup.setLong(1, batchId);
+                cleanup.executeUpdate();
+                connection.commit();
+                return rejects;
             } catch (SQLException e) {
-                e.printStackTrace();
-                return "An error occurred while creating the user.";
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
+        } finally {
+            Trace.finishSql(event);
         }
-        else {
-            return "User with the same username already exists.";
+    }
+
+    /**
+     * Removes the staged rows of a failed import.
+     *
+     * @param batchId ID of the import
+     * @return Number of rows removed
+     * @throws SQLException if a database access error occurs
+     */
+    public int discardImport(long batchId) throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("discardImport", null);
+        try (PreparedStatement stmt = connection().prepareStatement("DELETE FROM users_import WHERE batch_id = ?")) {
+            stmt.setLong(1, batchId);
+            event.rows = stmt.executeUpdate();
+            return (int) event.rows;
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
@@ -256,40 +1699,46 @@ public class Database {
      * @return Update user response
      */
     public String updateUser(String usernameToUpdate, String fieldToUpdate, String newVal) throws SQLException {
-        // Retrieve the user ID based on the username
-        int userId = getUserIdByUsername(usernameToUpdate);
+        Trace.SqlEvent event = Trace.startSql("updateUser", usernameToUpdate);
+        try {
+            // Retrieve the user ID based on the username
+            int userId = getUserIdByUsername(usernameToUpdate);
 
-        if (userId == -1) {
-            return "User not found.";
-        }
+            if (userId == -1) {
+                return "User not found.";
+            }
 
-        // Build the SQL query string
-        String sql = "UPDATE users SET " + fieldToUpdate + " = ? WHERE id = ?";
+            // Build the SQL query string
+            String sql = "UPDATE users SET " + fieldToUpdate + " = ? WHERE id = ?";
 
-        try (PreparedStatement stmt = dbConnection.prepareStatement(sql)) {
-            // Set the parameter values
-            if(fieldToUpdate.equals("birthdate")){
-                stmt.setDate(1, Date.valueOf(newVal));
-            }
-            else if(fieldToUpdate.equals("is_admin")){
-                stmt.setBoolean(1, Boolean.parseBoolean(newVal));
-            }
-            else {
-                stmt.setString(1, newVal);
-            }
-            stmt.setInt(2, userId);
+            try (PreparedStatement stmt = connection().prepareStatement(sql)) {
+                // Set the parameter values
+                if(fieldToUpdate.equals("birthdate")){
+                    stmt.setDate(1, Date.valueOf(newVal));
+                }
+                else if(fieldToUpdate.equals("is_admin")){
+                    stmt.setBoolean(1, Boolean.parseBoolean(newVal));
+                }
+                else {
+                    stmt.setString(1, newVal);
+                }
+                stmt.setInt(2, userId);
 
-            // Execute the update
-            int rowsUpdated = stmt.executeUpdate();
+                // Execute the update
+                int rowsUpdated = stmt.executeUpdate();
+                event.rows = rowsUpdated;
 
-            if (rowsUpdated > 0) {
-                return "User update successful.";
-            } else {
-                return "User update failed.";
+                if (rowsUpdated > 0) {
+                    return "User update successful.";
+                } else {
+                    return "User update failed.";
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return "An error occurred while updating the user.";
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred while updating the user.";
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
@@ -300,9 +1749,11 @@ public class Database {
      * @return Delete user response
      */
     public String deleteUser(String username) {
-        try (PreparedStatement stmt = dbConnection.prepareStatement("DELETE FROM users WHERE username = ?")) {
+        Trace.SqlEvent event = Trace.startSql("deleteUser", username);
+        try (PreparedStatement stmt = connection().prepareStatement("DELETE FROM users WHERE username = ?")) {
             stmt.setString(1, username);
             int rowsDeleted = stmt.executeUpdate();
+            event.rows = rowsDeleted;
             if (rowsDeleted > 0) {
                 return "User deleted successfully.";
             } else {
@@ -311,22 +1762,26 @@ public class Database {
         } catch (SQLException e) {
             e.printStackTrace();
             return "An error occurred while deleting the user.";
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
     /**
-     * Lists all users.
+     * Lists all users, selecting only the columns shown to admins.
      *
-     * @return List of users as a single string separated by ":::"
+     * @return Users in username order, without their passwords
+     * @throws SQLException if a database access error occurs
      */
-    public String listUsers() {
-        try (Statement stmt = dbConnection.createStatement();
-             ResultSet rs = stmt.executeQuery("SELECT * FROM users")) {
-            List<String> users = new ArrayList<>();
+    public List<User> listUsers() throws SQLException {
+        Trace.SqlEvent event = Trace.startSql("listUsers", null);
+        try (Statement stmt = connection().createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT username, name, surname, birthdate, gender, email, is_admin FROM users ORDER BY username")) {
+            List<User> users = new ArrayList<>();
             while (rs.next()) {
                 User user = new User(
                         rs.getString("username"),
-                        rs.getString("password"),
+                        null,
                         rs.getString("name"),
                         rs.getString("surname"),
                         rs.getDate("birthdate"),
@@ -334,13 +1789,188 @@ public class Database {
                         rs.getString("email"),
                         rs.getBoolean("is_admin")
                 );
-                users.add(user.toString());
+                users.add(user);
             }
-            return joinWithSeparator(users);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return "An error occurred while listing the users.";
+            event.rows = users.size();
+            return users;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+
+    /**
+     * Returns the latest applied migration, which is also the version of the COPY binary layout of every table.
+     *
+     * @return Schema version
+     * @throws SQLException if a database access error occurs
+     */
+    public int getSchemaVersion() throws SQLException {
+        try (Statement stmt = connection().createStatement()) {
+            return schemaVersion(stmt);
+        }
+    }
+
+    /**
+     * Starts a read-only transaction on the calling thread's connection in which every query sees
+     * the same snapshot of the database, so the tables of a snapshot export are consistent.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void beginSnapshot() throws SQLException {
+        Connection connection = connection();
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+        }
+    }
+
+    /**
+     * Ends the transaction started by beginSnapshot().
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void endSnapshot() throws SQLException {
+        Connection connection = connection();
+        try {
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Lists the partitions of the messages table, each of which is exported and restored on its own.
+     *
+     * @return Partition names in name order
+     * @throws SQLException if a database access error occurs
+     */
+    public List<String> messagePartitions() throws SQLException {
+        try (Statement stmt = connection().createStatement()) {
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'messages'::regclass ORDER BY c.relname");
+            List<String> partitions = new ArrayList<>();
+            while (rs.next()) {
+                partitions.add(rs.getString(1));
+            }
+            return partitions;
+        }
+    }
+
+    /**
+     * Returns the oldest and newest message timestamp of a messages partition.
+     *
+     * @param partition Partition returned by messagePartitions()
+     * @return {oldest, newest} in epoch milliseconds, or null if the partition is empty
+     * @throws SQLException if a database access error occurs
+     */
+    public long[] timestampRange(String partition) throws SQLException {
+        try (Statement stmt = connection().createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT min(timestamp), max(timestamp) FROM " + partition);
+            if (!rs.next() || rs.getTimestamp(1) == null) {
+                return null;
+            }
+            return new long[]{rs.getTimestamp(1).getTime(), rs.getTimestamp(2).getTime()};
+        }
+    }
+
+    /**
+     * Creates the monthly messages partitions covering a time range, so restored messages never land in the default partition.
+     *
+     * @param fromMillis Oldest timestamp, in epoch milliseconds
+     * @param toMillis   Newest timestamp, in epoch milliseconds
+     * @throws SQLException if a database access error occurs
+     */
+    public void ensureMessagePartitions(long fromMillis, long toMillis) throws SQLException {
+        YearMonth last = YearMonth.from(new Timestamp(toMillis).toLocalDateTime());
+        for (YearMonth month = YearMonth.from(new Timestamp(fromMillis).toLocalDateTime()); !month.isAfter(last); month = month.plusMonths(1)) {
+            createMonthlyPartition("messages", month);
+        }
+    }
+
+    /**
+     * Determines whether any message is stored.
+     *
+     * @return true if the messages table has a row
+     * @throws SQLException if a database access error occurs
+     */
+    public boolean hasMessages() throws SQLException {
+        try (Statement stmt = connection().createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM messages)");
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    /**
+     * Streams the rows of a table in COPY binary format.
+     *
+     * @param table   Table or partition
+     * @param columns Comma-separated columns to export
+     * @param out     Receives the COPY data
+     * @return Number of rows exported
+     * @throws SQLException if a database access error occurs
+     * @throws IOException  if the data cannot be written
+     */
+    public long copyOut(String table, String columns, OutputStream out) throws SQLException, IOException {
+        Trace.SqlEvent event = Trace.startSql("copyOut", null);
+        try {
+            CopyManager copy = connection().unwrap(PGConnection.class).getCopyAPI();
+            event.rows = copy.copyOut("COPY " + table + " (" + columns + ") TO STDOUT (FORMAT binary)", out);
+            return event.rows;
+        } finally {
+            Trace.finishSql(event);
+        }
+    }
+
+    /**
+     * Loads messages in COPY binary format. Rows are routed to their monthly partitions,
+     * which must exist beforehand, see ensureMessagePartitions(long, long).
+     *
+     * @param columns Comma-separated columns of the data
+     * @param in      COPY data
+     * @return Number of rows loaded
+     * @throws SQLException if a database access error occurs, e.g. a message already exists
+     * @throws IOException  if the data cannot be read
+     */
+    public long copyMessagesIn(String columns, InputStream in) throws SQLException, IOException {
+        Trace.SqlEvent event = Trace.startSql("copyMessagesIn", null);
+        try {
+            CopyManager copy = connection().unwrap(PGConnection.class).getCopyAPI();
+            event.rows = copy.copyIn("COPY messages (" + columns + ") FROM STDIN (FORMAT binary)", in);
+            return event.rows;
+        } finally {
+            Trace.finishSql(event);
         }
     }
 
+    /**
+     * Loads users in COPY binary format through a temporary table. Users whose username already exists,
+     * like the default admin, are left untouched.
+     *
+     * @param columns Comma-separated columns of the data
+     * @param in      COPY data
+     * @return Number of users added
+     * @throws SQLException if a database access error occurs
+     * @throws IOException  if the data cannot be read
+     */
+    public long copyUsersIn(String columns, InputStream in) throws SQLException, IOException {
+        Trace.SqlEvent event = Trace.startSql("copyUsersIn", null);
+        Connection connection = connection();
+        connection.setAutoCommit(false);
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("CREATE TEMP TABLE users_restore (LIKE users INCLUDING DEFAULTS) ON COMMIT DROP");
+            CopyManager copy = connection.unwrap(PGConnection.class).getCopyAPI();
+            copy.copyIn("COPY users_restore (" + columns + ") FROM STDIN (FORMAT binary)", in);
+            event.rows = stmt.executeUpdate("INSERT INTO users (" + columns + ") SELECT " + columns
+                    + " FROM users_restore ON CONFLICT (username) DO NOTHING");
+            connection.commit();
+            return event.rows;
+        } catch (SQLException | IOException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+            Trace.finishSql(event);
+        }
+    }
 }
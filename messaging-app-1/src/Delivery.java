@@ -0,0 +1,227 @@
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Delivery class that streams queued messages to logged in sessions in acknowledged batches.
+ * sendMessage() queues every message for its receiver in the same statement that stores it;
+ * a session receives at most one batch at a time as "PUSH:::BATCH:::batchId:::messages..."
+ * and the batch leaves the queue only when the client answers "ACK:::batchId".
+ * Unacknowledged batches are delivered again to the next session, at most maxAttempts times. Within a
+ * session, a batch that is not acknowledged in time, or that the session refused to queue, is returned
+ * to the queue and delivered again, so one lost batch never stalls the session.
+ */
+public class Delivery {
+    private static final long NO_BATCH = -1;
+    private static final long REFUSED_RETRY_MILLIS = 1000; // Wait before a batch refused by a busy session is delivered again
+
+    private final Shards shards;
+    private final Stage dbStage;
+    private final IdGenerator ids;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long redeliveryMillis;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong redelivered = new AtomicLong();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redelivery");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor for Delivery.
+     *
+     * @param shards           Message shards holding the queues
+     * @param dbStage          Stage the queue operations run on
+     * @param ids              Generator of batch IDs
+     * @param batchSize        Maximum messages per batch
+     * @param maxAttempts      Deliveries of a message before it is left to the inbox
+     * @param redeliveryMillis Time after which an unacknowledged batch, also one sent by a crashed server, is delivered again
+     */
+    public Delivery(Shards shards, Stage dbStage, IdGenerator ids, int batchSize, int maxAttempts, long redeliveryMillis) {
+        this.shards = shards;
+        this.dbStage = dbStage;
+        this.ids = ids;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.redeliveryMillis = redeliveryMillis;
+    }
+
+    /**
+     * Starts delivering to a session. Called when the session logs in.
+     *
+     * @param username Logged in user
+     * @param push     Queues a line for the session; false if the session refused it
+     * @return Delivery state of the session
+     */
+    public Receiver open(String username, Predicate<String> push) {
+        Receiver receiver = new Receiver(username, push);
+        receiver.poke();
+        return receiver;
+    }
+
+    /**
+     * Returns a one-line summary of the delivery statistics.
+     *
+     * @return A string in the format "delivery batches=.. acknowledged=.. redelivered=.."
+     */
+    public String stats() {
+        return "delivery batches=" + delivered.get() + " acknowledged=" + acknowledged.get() + " redelivered=" + redelivered.get();
+    }
+
+    /**
+     * Receiver class holds the delivery state of one logged in session.
+     */
+    public class Receiver {
+        private final String username;
+        private final Predicate<String> push;
+        private long batchId = NO_BATCH; // Batch waiting for its ACK
+        private boolean busy = false; // A claim is running or a batch is waiting for its ACK
+        private boolean again = false; // New messages were queued while busy
+        private boolean batchFull = false; // The last batch was full, so more messages may be waiting
+        private boolean closed = false;
+
+        /**
+         * Constructor for Receiver.
+         *
+         * @param username Logged in user
+         * @param push     Queues a line for the session; false if the session refused it
+         */
+        private Receiver(String username, Predicate<String> push) {
+            this.username = username;
+            this.push = push;
+        }
+
+        /**
+         * Delivers the next batch, or remembers to do so once the outstanding batch is acknowledged.
+         * Called on login and whenever a message for the user is queued.
+         */
+        public synchronized void poke() {
+            if (closed) {
+                return;
+            }
+            if (busy) {
+                again = true;
+                return;
+            }
+            busy = true;
+            claim();
+        }
+
+        /**
+         * Removes an acknowledged batch from the queue and delivers the next one.
+         *
+         * @param ackedBatchId Batch ID sent by the client
+         */
+        public synchronized void ack(long ackedBatchId) {
+            if (ackedBatchId != batchId) {
+                return; // Stale or unknown batch
+            }
+            batchId = NO_BATCH;
+            dbStage.submit(() -> shards.of(username).ackDeliveries(username, ackedBatchId)).whenComplete((count, error) -> {
+                if (error != null) {
+                    error.printStackTrace(); // The batch is delivered again after the redelivery timeout
+                } else {
+                    acknowledged.addAndGet(count);
+                }
+                synchronized (this) {
+                    busy = false;
+                    if (again || batchFull) {
+                        again = false;
+                        poke();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Stops delivering and returns an unacknowledged batch to the queue. Called when the session ends.
+         */
+        public synchronized void close() {
+            closed = true;
+            if (batchId != NO_BATCH) {
+                long released = batchId;
+                batchId = NO_BATCH;
+                dbStage.submit(() -> {
+                    shards.of(username).releaseDeliveries(username, released);
+                    return null;
+                }).exceptionally(e -> {
+                    e.printStackTrace(); // The batch is delivered again after the redelivery timeout
+                    return null;
+                });
+            }
+        }
+
+        /**
+         * Claims the next batch on the database stage and pushes it. Called while holding the lock, with busy set.
+         */
+        private void claim() {
+            long claimed = ids.nextId();
+            dbStage.submit(() -> shards.of(username).claimDeliveries(username, claimed, batchSize, maxAttempts, redeliveryMillis))
+                    .whenComplete((messages, error) -> onClaimed(claimed, messages, error));
+        }
+
+        /**
+         * Pushes a claimed batch, or goes idle if there was nothing to deliver.
+         *
+         * @param claimed  Batch ID
+         * @param messages Messages of the batch
+         * @param error    Failure of the claim, or null
+         */
+        private synchronized void onClaimed(long claimed, List<Message> messages, Throwable error) {
+            if (error != null || messages.isEmpty()) {
+                if (error != null) {
+                    error.printStackTrace(); // Retried on the next login or new message
+                }
+                busy = false;
+                if (again && error == null) {
+                    again = false;
+                    poke();
+                }
+                return;
+            }
+            batchFull = messages.size() == batchSize;
+            if (closed) {
+                batchId = claimed;
+                close(); // Session ended while claiming
+                return;
+            }
+            batchId = claimed;
+            delivered.incrementAndGet();
+            boolean queued = push.test("PUSH:::BATCH:::" + claimed + ":::" + messages.stream().map(Message::toString).collect(Collectors.joining(":::")));
+            timer.schedule(() -> expire(claimed), queued ? redeliveryMillis : REFUSED_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Returns a batch that is still not acknowledged to the queue and delivers again. Runs on the timer.
+         *
+         * @param expired Batch ID
+         */
+        private synchronized void expire(long expired) {
+            if (closed || batchId != expired) {
+                return; // Acknowledged, or the session ended and close() released it
+            }
+            batchId = NO_BATCH;
+            redelivered.incrementAndGet();
+            dbStage.submit(() -> {
+                shards.of(username).releaseDeliveries(username, expired);
+                return null;
+            }).whenComplete((v, error) -> {
+                if (error != null) {
+                    error.printStackTrace(); // Claimed again after the redelivery timeout
+                }
+                synchronized (this) {
+                    busy = false;
+                    again = false;
+                    poke();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * IdGenerator class that hands out time-ordered 64-bit message IDs without a database round trip.
+ * Layout: 41 bits of milliseconds since 2024-01-01 UTC, 10 bits of node ID and 12 bits of sequence.
+ */
+public class IdGenerator {
+    private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+    private long lastMillis = -1;
+    private long sequence = 0;
+
+    /**
+     * Constructor for IdGenerator.
+     *
+     * @param nodeId ID of this server node, between 0 and MAX_NODE_ID
+     */
+    public IdGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE_ID + ".");
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Returns the next ID. IDs from one generator are strictly increasing, even if the clock steps back
+     * or more than 4096 IDs are requested in one millisecond; in both cases the generator runs ahead of the clock.
+     *
+     * @return A new unique ID
+     */
+    public synchronized long nextId() {
+        long now = System.currentTimeMillis() - EPOCH;
+        if (now > lastMillis) {
+            lastMillis = now;
+            sequence = 0;
+        } else {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                lastMillis++;
+            }
+        }
+        return (lastMillis << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Extracts the creation time of an ID.
+     *
+     * @param id ID returned by nextId()
+     * @return Creation time in epoch milliseconds
+     */
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    /**
+     * Returns the smallest ID that can be generated at the given time, for use as a time-based cursor.
+     *
+     * @param epochMillis Time in epoch milliseconds
+     * @return Smallest ID at that time
+     */
+    public static long firstIdAt(long epochMillis) {
+        return Math.max(0, epochMillis - EPOCH) << (NODE_BITS + SEQUENCE_BITS);
+    }
+}
@@ -0,0 +1,160 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * InboxCache class that keeps the newest inbox messages of recently active users in memory,
+ * so INBOX can still be answered while the database is unavailable. It holds the newest messages
+ * of inboxes read to the end through this node and of messages sent through it, up to a fixed number per
+ * user, for a bounded number of least recently used users and a bounded total size. Answers from
+ * the cache may miss messages that never passed through this node. Messages are kept in compact form.
+ */
+public class InboxCache {
+    private final int messagesPerUser;
+    private final long maxBytes;
+    private long bytes = 0; // Estimated heap of the cached messages
+    private final Map<String, NavigableMap<Long, CompactMessage>> inboxes; // Receiver -> newest messages by ID, least recently used first
+    private final AtomicLong served = new AtomicLong();
+
+    /**
+     * Constructor for InboxCache.
+     *
+     * @param maxUsers        Users whose messages are kept
+     * @param messagesPerUser Newest messages kept per user
+     * @param maxBytes        Estimated heap of all cached messages, beyond which the least recently used users are dropped
+     */
+    public InboxCache(int maxUsers, int messagesPerUser, long maxBytes) {
+        this.messagesPerUser = messagesPerUser;
+        this.maxBytes = maxBytes;
+        this.inboxes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NavigableMap<Long, CompactMessage>> eldest) {
+                if (size() > maxUsers) {
+                    bytes -= sizeOf(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Remembers the newest messages of an inbox that were read from the database.
+     *
+     * @param username Receiver
+     * @param messages Newest messages of the inbox in ID order, at most getMessagesPerUser() of them
+     */
+    public synchronized void remember(String username, List<CompactMessage> messages) {
+        NavigableMap<Long, CompactMessage> inbox = inboxes.computeIfAbsent(username, key -> new TreeMap<>());
+        for (CompactMessage message : messages) {
+            put(inbox, message);
+        }
+        trim(inbox);
+    }
+
+    /**
+     * Returns the number of newest messages kept per user.
+     *
+     * @return Messages kept per user
+     */
+    public int getMessagesPerUser() {
+        return messagesPerUser;
+    }
+
+    /**
+     * Adds a message sent to a user.
+     *
+     * @param message Message, stored or spooled
+     */
+    public void add(Message message) {
+        CompactMessage compact = CompactMessage.of(message);
+        synchronized (this) {
+            NavigableMap<Long, CompactMessage> inbox = inboxes.computeIfAbsent(message.getReceiver(), key -> new TreeMap<>());
+            put(inbox, compact);
+            trim(inbox);
+        }
+    }
+
+    /**
+     * Reads a page of an inbox from the cache.
+     *
+     * @param username Receiver
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Cached messages in ID order as a single string separated by ":::", or null if nothing is cached for the user
+     */
+    public synchronized String read(String username, long afterId, int limit) {
+        NavigableMap<Long, CompactMessage> inbox = inboxes.get(username);
+        if (inbox == null) {
+            return null;
+        }
+        served.incrementAndGet();
+        StringBuilder page = new StringBuilder();
+        int count = 0;
+        for (CompactMessage message : inbox.tailMap(afterId, false).values()) {
+            if (count == limit) {
+                break;
+            }
+            if (count++ > 0) {
+                page.append(":::");
+            }
+            message.appendTo(page);
+        }
+        return page.toString();
+    }
+
+    /**
+     * Adds a message to a cached inbox and counts its size.
+     *
+     * @param inbox   Cached inbox
+     * @param message Message
+     */
+    private void put(NavigableMap<Long, CompactMessage> inbox, CompactMessage message) {
+        CompactMessage previous = inbox.put(message.getId(), message);
+        bytes += message.size() - (previous == null ? 0 : previous.size());
+    }
+
+    /**
+     * Drops the oldest messages beyond the per-user limit, then the least recently used users
+     * while the cache is over its size limit. The inbox just used is dropped last.
+     *
+     * @param inbox Cached inbox
+     */
+    private void trim(NavigableMap<Long, CompactMessage> inbox) {
+        while (inbox.size() > messagesPerUser) {
+            bytes -= inbox.pollFirstEntry().getValue().size();
+        }
+        Iterator<NavigableMap<Long, CompactMessage>> eldest = inboxes.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns the estimated heap of a cached inbox.
+     *
+     * @param inbox Cached inbox
+     * @return Sum of the message sizes
+     */
+    private static long sizeOf(NavigableMap<Long, CompactMessage> inbox) {
+        long size = 0;
+        for (CompactMessage message : inbox.values()) {
+            size += message.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a one-line summary of the cache.
+     *
+     * @return A string in the format "inbox cache users=.. bytes=.. served=.. usernames=.."
+     */
+    public synchronized String stats() {
+        return "inbox cache users=" + inboxes.size() + " bytes=" + bytes + " served=" + served.get() + " usernames=" + Usernames.size();
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * LineReader class that reads protocol lines with an upper bound on their length.
+ * Unlike BufferedReader.readLine(), an over-long line is never held in memory as a whole:
+ * its excess characters are skipped and the line is reported as TOO_LONG.
+ */
+public class LineReader implements Closeable {
+    public static final String TOO_LONG = "\n"; // Returned for a line over the limit; never a real line
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader in;
+    private final int maxLength;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private boolean skipLineFeed = false; // The previous line ended with '\r'
+
+    /**
+     * Constructor for LineReader.
+     *
+     * @param in        Reader to read from
+     * @param maxLength Maximum number of characters in a line
+     */
+    public LineReader(Reader in, int maxLength) {
+        this.in = in;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads the next line, ended by "\n", "\r" or "\r\n".
+     *
+     * @return The line without its terminator, TOO_LONG if it exceeds the limit, or null at the end of the stream
+     * @throws IOException if an I/O error occurs
+     */
+    public String readLine() throws IOException {
+        StringBuilder line = null;
+        boolean tooLong = false;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer, 0, BUFFER_SIZE);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (line == null && !tooLong) {
+                        return null;
+                    }
+                    return tooLong ? TOO_LONG : line.toString();
+                }
+            }
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                    continue;
+                }
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n' && buffer[position] != '\r') {
+                position++;
+            }
+            if (line == null) {
+                line = new StringBuilder();
+            }
+            if (!tooLong) {
+                if (line.length() + position - start > maxLength) {
+                    tooLong = true;
+                    line.setLength(0); // Release what was read so far
+                } else {
+                    line.append(buffer, start, position - start);
+                }
+            }
+            if (position < limit) {
+                skipLineFeed = buffer[position] == '\r';
+                position++;
+                return tooLong ? TOO_LONG : line.toString();
+            }
+        }
+    }
+
+    /**
+     * Closes the underlying reader.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -5,6 +5,7 @@ import java.sql.Timestamp;
  * Message class represents a message object containing details about the sender, receiver, content, and timestamp.
  */
 public class Message implements Serializable {
+    private long id;
     private String sender;
     private String receiver;
     private String content;
@@ -13,18 +14,27 @@ public class Message implements Serializable {
     /**
      * Constructs a new Message object.
      *
+     * @param id        The time-ordered ID of the message.
      * @param sender    The username of the sender.
      * @param receiver  The username of the receiver.
      * @param content   The content of the message.
      * @param timestamp The timestamp when the message was sent.
      */
-    public Message(String sender, String receiver, String content, Timestamp timestamp) {
+    public Message(long id, String sender, String receiver, String content, Timestamp timestamp) {
+        this.id = id;
         this.sender = sender;
         this.receiver = receiver;
         this.content = content;
         this.timestamp = timestamp;
     }
 
+    /**
+     * Returns the ID of the message. IDs are time-ordered and are the ordering and cursor key of message lists.
+     *
+     * @return The ID of the message.
+     */
+    public long getId() { return id; }
+
     /**
      * Returns the username of the sender.
      *
@@ -56,11 +66,27 @@ public class Message implements Serializable {
     /**
      * Returns a string representation of the Message object.
      *
-     * @return A string in the format "sender:::receiver:::content:::timestamp".
+     * @return A string in the format "id:::sender:::receiver:::content:::timestamp".
      */
     @Override
     public String toString() {
-        return sender + ":::" + receiver + ":::" + content + ":::" + timestamp;
+        StringBuilder out = new StringBuilder();
+        appendTo(out, id, sender, receiver, content, timestamp);
+        return out.toString();
+    }
+
+    /**
+     * Appends a message in the protocol format, so rows can be encoded without creating a Message.
+     *
+     * @param out       Buffer of the response line
+     * @param id        The ID of the message.
+     * @param sender    The username of the sender.
+     * @param receiver  The username of the receiver.
+     * @param content   The content of the message.
+     * @param timestamp The timestamp of the message.
+     */
+    public static void appendTo(StringBuilder out, long id, String sender, String receiver, String content, Timestamp timestamp) {
+        out.append(id).append(":::").append(sender).append(":::").append(receiver).append(":::").append(content).append(":::").append(timestamp);
     }
 
 }
@@ -0,0 +1,90 @@
+import java.io.PrintWriter;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbox class that writes the lines of one client connection on its own thread, so a client that
+ * reads slowly only stalls its own writes. Responses are never refused: a connection has at most
+ * MAX_IN_FLIGHT of them pending, bounded by its reader. Pushes are bounded separately and refused
+ * once that many are waiting, which the caller has to handle, e.g. by delivering the batch again later.
+ */
+public class Outbox {
+    private static final AtomicLong refusedPushes = new AtomicLong(); // Over every connection
+
+    private final PrintWriter out;
+    private final ExecutorService writer;
+    private final Semaphore pushSlots;
+
+    /**
+     * Constructor for Outbox.
+     *
+     * @param out       Writer of the connection
+     * @param name      Thread name
+     * @param maxPushes Pushes waiting to be written before further pushes are refused
+     */
+    public Outbox(PrintWriter out, String name, int maxPushes) {
+        this.out = out;
+        this.pushSlots = new Semaphore(maxPushes);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a response line.
+     *
+     * @param line    Response line
+     * @param written Called on the writer thread once the line is written
+     * @return Future completing once the line is written; completes exceptionally if the connection is closed
+     */
+    public CompletableFuture<Void> respond(String line, Runnable written) {
+        return CompletableFuture.runAsync(() -> {
+            out.println(line);
+            written.run();
+        }, writer);
+    }
+
+    /**
+     * Queues an unsolicited line, unless too many are waiting already.
+     *
+     * @param line Line to push
+     * @return true if the line was queued, false if it was refused
+     */
+    public boolean push(String line) {
+        if (!pushSlots.tryAcquire()) {
+            refusedPushes.incrementAndGet();
+            return false;
+        }
+        try {
+            writer.execute(() -> {
+                try {
+                    out.println(line);
+                } finally {
+                    pushSlots.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pushSlots.release(); // Connection closed
+            return false;
+        }
+    }
+
+    /**
+     * Stops the writer thread once the queued lines are written.
+     */
+    public void close() {
+        writer.shutdown();
+    }
+
+    /**
+     * Returns a one-line summary of the outboxes of every connection.
+     *
+     * @return A string in the format "outbox refusedPushes=.."
+     */
+    public static String stats() {
+        return "outbox refusedPushes=" + refusedPushes.get();
+    }
+}
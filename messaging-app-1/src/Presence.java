@@ -0,0 +1,387 @@
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Presence class that tells sessions which of the users they watch are online, and who is typing to them.
+ * Changes are not pushed as they happen: once per tick, every session with news gets a single line
+ * "PUSH:::PRESENCE:::user=online:::user=offline:::user=typing". A user only changes state after staying
+ * online or offline for the debounce time, so reconnect flaps are never broadcast, and each node sends
+ * its settled changes to the other nodes once per tick, whatever the number of watchers.
+ */
+public class Presence {
+    public static final String TYPING_LINE = "TYPING:::"; // Forwarded to the node of a receiver, followed by the typing user
+    private static final int MAX_SUBSCRIPTIONS = 500; // Users one session can watch
+
+    private final Cluster cluster;
+    private final int nodeId;
+    private final long debounceMillis;
+    private final long typingIntervalMillis;
+    private final long snapshotMillis;
+    private final Map<String, Set<Session>> sessions = new HashMap<>(); // Logged in sessions of this node by username
+    private final Map<String, Set<Session>> subscribers = new HashMap<>(); // Watched username -> watching sessions of this node
+    private final Map<String, Long> pending = new HashMap<>(); // Users of this node that logged in or out, with the time of the last change
+    private final Set<String> published = new HashSet<>(); // Users of this node announced as online
+    private final Map<Integer, Set<String>> remote = new HashMap<>(); // Node ID -> users that node announced as online
+    private final Set<String> touched = new HashSet<>(); // Users whose state may have changed since the last tick
+    private final Map<String, Boolean> announced = new HashMap<>(); // Watched username -> state last pushed to its watchers
+    private final Map<String, Set<String>> typing = new HashMap<>(); // Receiver of this node -> users typing to it since the last tick
+    private final Map<String, Long> lastTyping = new HashMap<>(); // "sender:::receiver" -> time the last typing notice was passed on
+    private final Set<Integer> knownNodes = new HashSet<>();
+    private long lastSnapshot = 0;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong pushes = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Constructor for Presence.
+     *
+     * @param cluster              Cluster the changes are broadcast to
+     * @param nodeId               ID of this node
+     * @param debounceMillis       Time a user must stay online or offline before the change is announced
+     * @param typingIntervalMillis Minimum time between two typing notices of one user to another
+     * @param snapshotMillis       Time between full broadcasts of this node's online users, which repair lost changes
+     */
+    public Presence(Cluster cluster, int nodeId, long debounceMillis, long typingIntervalMillis, long snapshotMillis) {
+        this.cluster = cluster;
+        this.nodeId = nodeId;
+        this.debounceMillis = debounceMillis;
+        this.typingIntervalMillis = typingIntervalMillis;
+        this.snapshotMillis = snapshotMillis;
+    }
+
+    /**
+     * Starts the periodic broadcast.
+     *
+     * @param tickMillis Time between two broadcasts
+     */
+    public void start(long tickMillis) {
+        ticker.scheduleWithFixedDelay(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // Keep ticking; the next snapshot repairs the state
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a logged in session. Called when the session logs in.
+     *
+     * @param username Logged in user
+     * @param push     Writes a line to the session
+     * @return Presence state of the session
+     */
+    public synchronized Session join(String username, Consumer<String> push) {
+        Session session = new Session(username, push);
+        Set<Session> own = sessions.computeIfAbsent(username, key -> new HashSet<>());
+        own.add(session);
+        if (own.size() == 1) {
+            pending.put(username, System.currentTimeMillis());
+        }
+        return session;
+    }
+
+    /**
+     * Passes on that one user is typing to another: to the receiver's sessions on this node,
+     * otherwise to the node owning the receiver. Notices repeated within the typing interval are dropped.
+     *
+     * @param sender   Typing user
+     * @param receiver User being typed to
+     */
+    public void typing(String sender, String receiver) {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Long last = lastTyping.get(sender + ":::" + receiver);
+            if (last != null && now - last < typingIntervalMillis) {
+                coalesced.incrementAndGet();
+                return;
+            }
+            lastTyping.put(sender + ":::" + receiver, now);
+            if (sessions.containsKey(receiver)) {
+                typing.computeIfAbsent(receiver, key -> new LinkedHashSet<>()).add(sender);
+                return;
+            }
+        }
+        Cluster.Node owner = cluster.owner(receiver);
+        if (!cluster.isSelf(owner)) {
+            cluster.forward(owner, receiver, TYPING_LINE + sender);
+        }
+    }
+
+    /**
+     * Handles a typing notice another node forwarded. It is only passed on to sessions of this node,
+     * so a notice never travels back and forth while the nodes disagree on the owner.
+     *
+     * @param sender   Typing user
+     * @param receiver User of this node being typed to
+     */
+    public synchronized void typingForwarded(String sender, String receiver) {
+        if (sessions.containsKey(receiver)) {
+            typing.computeIfAbsent(receiver, key -> new LinkedHashSet<>()).add(sender);
+        }
+    }
+
+    /**
+     * Applies a broadcast of another node: "CHANGES:::nodeId:::user=online:::..." or "SNAPSHOT:::nodeId:::user:::...".
+     *
+     * @param line Broadcast line
+     */
+    public synchronized void receive(String line) {
+        String[] parts = line.split(":::");
+        if (parts.length < 2) {
+            return;
+        }
+        int node = Integer.parseInt(parts[1]);
+        Set<String> online = remote.computeIfAbsent(node, key -> new HashSet<>());
+        if (parts[0].equals("SNAPSHOT")) {
+            Set<String> snapshot = new HashSet<>(Arrays.asList(parts).subList(2, parts.length));
+            touched.addAll(online);
+            touched.addAll(snapshot);
+            online.clear();
+            online.addAll(snapshot);
+        } else if (parts[0].equals("CHANGES")) {
+            for (int i = 2; i < parts.length; i++) {
+                String[] change = parts[i].split("=", 2);
+                if (change.length == 2 && change[1].equals("online")) {
+                    online.add(change[0]);
+                } else {
+                    online.remove(change[0]);
+                }
+                touched.add(change[0]);
+            }
+        }
+    }
+
+    /**
+     * Settles the pending changes of this node, broadcasts them, and pushes one line to every session with news.
+     */
+    private void tick() {
+        Map<Session, List<String>> batches = new LinkedHashMap<>();
+        List<String> changes = new ArrayList<>();
+        String snapshot = null;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Map.Entry<String, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, Long> entry = it.next();
+                if (now - entry.getValue() < debounceMillis) {
+                    continue; // Still flapping
+                }
+                it.remove();
+                String username = entry.getKey();
+                boolean online = sessions.containsKey(username);
+                if (online == published.contains(username)) {
+                    coalesced.incrementAndGet(); // Logged out and in again, or the other way round
+                    continue;
+                }
+                if (online) {
+                    published.add(username);
+                } else {
+                    published.remove(username);
+                }
+                changes.add(username + "=" + state(online));
+                touched.add(username);
+            }
+
+            // Users of nodes that left the cluster are offline; a node that joined needs our online users
+            Set<Integer> members = cluster.memberIds();
+            for (Iterator<Map.Entry<Integer, Set<String>>> it = remote.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Integer, Set<String>> entry = it.next();
+                if (!members.contains(entry.getKey())) {
+                    touched.addAll(entry.getValue());
+                    it.remove();
+                }
+            }
+            if (!knownNodes.containsAll(members)) {
+                lastSnapshot = 0;
+            }
+            knownNodes.retainAll(members);
+            knownNodes.addAll(members);
+
+            for (String username : touched) {
+                Set<Session> watchers = subscribers.get(username);
+                if (watchers == null) {
+                    continue;
+                }
+                boolean online = isOnline(username);
+                Boolean before = announced.put(username, online);
+                if (before != null && before == online) {
+                    continue;
+                }
+                for (Session watcher : watchers) {
+                    batches.computeIfAbsent(watcher, key -> new ArrayList<>()).add(username + "=" + state(online));
+                }
+            }
+            touched.clear();
+
+            for (Map.Entry<String, Set<String>> entry : typing.entrySet()) {
+                for (Session session : sessions.getOrDefault(entry.getKey(), Set.of())) {
+                    for (String sender : entry.getValue()) {
+                        batches.computeIfAbsent(session, key -> new ArrayList<>()).add(sender + "=typing");
+                    }
+                }
+            }
+            typing.clear();
+            lastTyping.values().removeIf(time -> now - time >= typingIntervalMillis);
+
+            if (now - lastSnapshot >= snapshotMillis) {
+                lastSnapshot = now;
+                snapshot = "SNAPSHOT:::" + nodeId + (published.isEmpty() ? "" : ":::" + String.join(":::", published));
+            }
+        }
+
+        for (Map.Entry<Session, List<String>> batch : batches.entrySet()) {
+            batch.getKey().push.accept("PUSH:::PRESENCE:::" + String.join(":::", batch.getValue()));
+            pushes.incrementAndGet();
+            events.addAndGet(batch.getValue().size());
+        }
+        if (!changes.isEmpty()) {
+            cluster.broadcast("CHANGES:::" + nodeId + ":::" + String.join(":::", changes));
+        }
+        if (snapshot != null) {
+            cluster.broadcast(snapshot);
+        }
+    }
+
+    /**
+     * Determines whether a user is online on any node, as far as announced.
+     *
+     * @param username Username
+     * @return true if the user is online
+     */
+    private boolean isOnline(String username) {
+        if (published.contains(username)) {
+            return true;
+        }
+        for (Set<String> online : remote.values()) {
+            if (online.contains(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of a presence state.
+     *
+     * @param online Whether the user is online
+     * @return "online" or "offline"
+     */
+    private static String state(boolean online) {
+        return online ? "online" : "offline";
+    }
+
+    /**
+     * Returns a one-line summary of the presence statistics.
+     *
+     * @return A string in the format "presence online=.. watched=.. pushes=.. events=.. coalesced=.."
+     */
+    public synchronized String stats() {
+        return "presence online=" + published.size() + " watched=" + subscribers.size() + " pushes=" + pushes.get()
+                + " events=" + events.get() + " coalesced=" + coalesced.get();
+    }
+
+    /**
+     * Stops broadcasting.
+     */
+    public void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * Session class holds the presence state of one logged in session.
+     */
+    public class Session {
+        private final String username;
+        private final Consumer<String> push;
+        private final Set<String> watched = new HashSet<>();
+
+        /**
+         * Constructor for Session.
+         *
+         * @param username Logged in user
+         * @param push     Writes a line to the session
+         */
+        private Session(String username, Consumer<String> push) {
+            this.username = username;
+            this.push = push;
+        }
+
+        /**
+         * Starts watching users.
+         *
+         * @param usernames Users to watch
+         * @return Response with the current state of every watched user, "Presence.:::user=online:::user=offline"
+         */
+        public String subscribe(List<String> usernames) {
+            synchronized (Presence.this) {
+                StringBuilder response = new StringBuilder("Presence.");
+                for (String target : usernames) {
+                    if (!watched.contains(target) && watched.size() >= MAX_SUBSCRIPTIONS) {
+                        return "Error: At most " + MAX_SUBSCRIPTIONS + " users can be watched.";
+                    }
+                    watched.add(target);
+                    subscribers.computeIfAbsent(target, key -> new HashSet<>()).add(this);
+                    boolean online = isOnline(target);
+                    announced.putIfAbsent(target, online);
+                    response.append(":::").append(target).append('=').append(state(online));
+                }
+                return response.toString();
+            }
+        }
+
+        /**
+         * Stops watching users.
+         *
+         * @param usernames Users to stop watching
+         */
+        public void unsubscribe(List<String> usernames) {
+            synchronized (Presence.this) {
+                for (String target : usernames) {
+                    if (watched.remove(target)) {
+                        removeWatcher(target);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Unregisters the session. Called when the session logs out or disconnects.
+         */
+        public void close() {
+            synchronized (Presence.this) {
+                for (String target : watched) {
+                    removeWatcher(target);
+                }
+                watched.clear();
+                Set<Session> own = sessions.get(username);
+                if (own != null && own.remove(this) && own.isEmpty()) {
+                    sessions.remove(username);
+                    typing.remove(username);
+                    pending.put(username, System.currentTimeMillis());
+                }
+            }
+        }
+
+        /**
+         * Removes this session from the watchers of a user. Called while holding the presence lock.
+         *
+         * @param target Watched user
+         */
+        private void removeWatcher(String target) {
+            Set<Session> watchers = subscribers.get(target);
+            if (watchers != null && watchers.remove(this) && watchers.isEmpty()) {
+                subscribers.remove(target);
+                announced.remove(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RecentKeys class that remembers the client message IDs of recent SENDMSGs on this node, so a
+ * retried message is answered with its original ID without a database round trip. The window is
+ * bounded to the least recently used keys; older retries are caught by the message_keys table.
+ */
+public class RecentKeys {
+    private final Map<String, Long> keys; // "sender:::clientMsgId" -> message ID, least recently used first
+    private long hits = 0;
+    private long duplicates = 0;
+
+    /**
+     * Constructor for RecentKeys.
+     *
+     * @param maxKeys Keys remembered
+     */
+    public RecentKeys(int maxKeys) {
+        this.keys = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxKeys;
+            }
+        };
+    }
+
+    /**
+     * Looks up the message sent earlier under a client message ID.
+     *
+     * @param sender      Sending user
+     * @param clientMsgId ID the client chose for the message
+     * @return Message ID, or null if the key is not in the window
+     */
+    public synchronized Long get(String sender, String clientMsgId) {
+        Long id = keys.get(sender + ":::" + clientMsgId);
+        if (id != null) {
+            hits++;
+        }
+        return id;
+    }
+
+    /**
+     * Remembers the message sent under a client message ID.
+     *
+     * @param sender      Sending user
+     * @param clientMsgId ID the client chose for the message
+     * @param messageId   ID of the stored message
+     * @param duplicate   Whether the database found the key already used
+     */
+    public synchronized void put(String sender, String clientMsgId, long messageId, boolean duplicate) {
+        keys.put(sender + ":::" + clientMsgId, messageId);
+        if (duplicate) {
+            duplicates++;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the window.
+     *
+     * @return A string in the format "recent keys size=.. hits=.. duplicates=.."
+     */
+    public synchronized String stats() {
+        return "recent keys size=" + keys.size() + " hits=" + hits + " duplicates=" + duplicates;
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+/**
+ * Request class represents a decoded client command waiting to be executed.
+ */
+public class Request {
+    private final String name;
+    private final String[] parts;
+    private final long receivedAt;
+
+    /**
+     * Constructs a new Request object.
+     *
+     * @param parts The command split on ":::", starting with the command name.
+     */
+    private Request(String[] parts) {
+        this.name = parts[0];
+        this.parts = parts;
+        this.receivedAt = System.nanoTime();
+    }
+
+    /**
+     * Decodes a protocol line into a request.
+     *
+     * @param line Line received from the client
+     * @return The decoded request
+     */
+    public static Request parse(String line) {
+        return new Request(line.split(":::"));
+    }
+
+    /**
+     * Returns the command name.
+     *
+     * @return The command name, e.g. "SENDMSG".
+     */
+    public String getName() { return name; }
+
+    /**
+     * Returns an argument of the command.
+     *
+     * @param index Position of the argument, where 0 is the command name
+     * @return The argument
+     * @throws ArrayIndexOutOfBoundsException if the client sent fewer arguments
+     */
+    public String arg(int index) { return parts[index]; }
+
+    /**
+     * Returns every argument of the command.
+     *
+     * @return The arguments, without the command name.
+     */
+    public String[] getArgs() { return Arrays.copyOfRange(parts, 1, parts.length); }
+
+    /**
+     * Returns the number of parts, including the command name.
+     *
+     * @return The number of parts.
+     */
+    public int size() { return parts.length; }
+
+    /**
+     * Returns when the request was decoded.
+     *
+     * @return The value of System.nanoTime() at decode time.
+     */
+    public long getReceivedAt() { return receivedAt; }
+}
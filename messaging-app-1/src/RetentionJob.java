@@ -0,0 +1,121 @@
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RetentionJob class that periodically removes expired messages. Age-based retention expires whole
+ * months by detaching their partitions once the month lies entirely before the cutoff; only the per-user
+ * cap, and the rare rows of the default partition, are purged row by row in small, throttled batches.
+ * Every batch is a separate short task on the database stage, so SENDMSG and inbox reads
+ * interleave with the purge instead of waiting behind one large DELETE.
+ */
+public class RetentionJob implements Runnable {
+    private final Database db;
+    private final Stage dbStage;
+    private final long maxAgeMillis;
+    private final int perUserCap;
+    private final int batchSize;
+    private final long pauseMillis;
+    private final boolean archive;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "retention");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLong detachedPartitions = new AtomicLong();
+    private volatile long lastRunMillis;
+
+    /**
+     * Constructor for RetentionJob.
+     *
+     * @param db           Database
+     * @param dbStage      Stage the purge batches run on
+     * @param maxAgeMillis Messages older than this are expired; 0 disables age-based retention
+     * @param perUserCap   Newest messages kept per inbox; 0 disables the cap
+     * @param batchSize    Maximum messages removed per batch
+     * @param pauseMillis  Pause between two batches
+     * @param archive      Whether expired messages are moved to messages_archive instead of dropped
+     */
+    public RetentionJob(Database db, Stage dbStage, long maxAgeMillis, int perUserCap, int batchSize, long pauseMillis, boolean archive) {
+        this.db = db;
+        this.dbStage = dbStage;
+        this.maxAgeMillis = maxAgeMillis;
+        this.perUserCap = perUserCap;
+        this.batchSize = batchSize;
+        this.pauseMillis = pauseMillis;
+        this.archive = archive;
+    }
+
+    /**
+     * Schedules the job, unless no retention rule is configured.
+     *
+     * @param intervalMillis Time between two runs
+     */
+    public void start(long intervalMillis) {
+        if (maxAgeMillis > 0 || perUserCap > 0) {
+            scheduler.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs one retention pass.
+     */
+    @Override
+    public void run() {
+        try {
+            if (maxAgeMillis > 0) {
+                Timestamp cutoff = new Timestamp(System.currentTimeMillis() - maxAgeMillis);
+                // Whole expired months are detached in O(1); the boundary month waits until it has expired entirely
+                int partitions = dbStage.submit(() -> db.dropExpiredPartitions(cutoff, archive)).join();
+                detachedPartitions.addAndGet(partitions);
+                drain(() -> db.purgeBefore(cutoff, batchSize, archive));
+            }
+            if (perUserCap > 0) {
+                // Archived rows go to the archive's default partition until their month expires and is attached
+                List<String> users = dbStage.submit(() -> db.findUsersOverCap(perUserCap)).join();
+                for (String username : users) {
+                    drain(() -> db.purgeOverCap(username, perUserCap, batchSize, archive));
+                }
+            }
+            lastRunMillis = System.currentTimeMillis();
+        } catch (RuntimeException | InterruptedException e) {
+            e.printStackTrace(); // Retried on the next run
+        }
+    }
+
+    /**
+     * Runs a purge batch repeatedly until it removes less than a full batch, pausing between batches.
+     *
+     * @param batch Purge batch returning the number of removed messages
+     * @throws InterruptedException if the job is stopped while pausing
+     */
+    private void drain(Callable<Integer> batch) throws InterruptedException {
+        int removed;
+        do {
+            removed = dbStage.submit(batch).join();
+            purged.addAndGet(removed);
+            Thread.sleep(pauseMillis);
+        } while (removed == batchSize);
+    }
+
+    /**
+     * Returns a one-line summary of the job statistics.
+     *
+     * @return A string in the format "retention purged=.. detachedPartitions=.. lastRun=.."
+     */
+    public String stats() {
+        return "retention purged=" + purged.get() + " detachedPartitions=" + detachedPartitions.get() + " lastRun=" + (lastRunMillis == 0 ? "never" : new Timestamp(lastRunMillis).toString());
+    }
+
+    /**
+     * Stops the job.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -1,77 +1,434 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Server class that handles client connections and database interactions.
  */
 public class Server {
-    private static Connection dbConnection;
     private static List<String> validUsernames = new ArrayList<>(); // List of currently logged in and registered users
-    private static Database db;
-    private static final int PORT = 8000;
+    private static Database db; // Users and every table that is not sharded
+    private static Shards shards;
+    private static CompletableFuture<Void> dbReady; // Completes once the schema is current
+    private static IdGenerator ids;
+    private static Cluster cluster;
+    private static Delivery delivery;
+    private static Presence presence;
+    private static final Map<String, Set<ClientHandler>> online = new ConcurrentHashMap<>(); // Logged in sessions of this node by username
+    private static List<RetentionJob> retention = new ArrayList<>(); // One job per message shard
+    private static UserDirectory directory;
+    private static BlobStore blobs;
+    private static InboxCache inboxCache;
+    private static Spool spool;
+    private static final RecentKeys recentKeys = new RecentKeys(100_000); // Client message IDs of recent SENDMSGs on this node
+    private static final Set<ClientHandler> sessions = ConcurrentHashMap.newKeySet(); // Every open connection, including queued ones
+    private static final AtomicLong reapedSessions = new AtomicLong();
+    private static final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int DEFAULT_PORT = 8000; // Client port of node 0; other nodes are started with their own port
+    private static final int LINK_PORT_OFFSET = 1000; // The inter-node link of a node listens on its client port plus this
+    private static final String NODE_HOST = System.getProperty("cluster.host", "localhost"); // Host advertised to clients and other nodes, and the link is bound to
+    private static final String CLUSTER_SECRET = System.getProperty("cluster.secret"); // Key of the link handshake; null to share a random one through the database
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 2000; // Time between cluster heartbeats and ring refreshes
+    private static final long NODE_TTL_MILLIS = 10 * 1000; // Nodes silent for longer leave the ring
     private static final int THREAD_POOL_SIZE = 10; // Adjust as needed
+    private static final int VERIFIER_POOL_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // Threads reserved for password hashing
+    private static final int IMPORT_POOL_SIZE = 1; // Threads hashing IMPORTUSERS passwords, apart from the verifier so logins keep their threads
+    private static final int IMPORT_QUEUE_CAPACITY = 16; // Pending import chunks before further imports are rejected
+    private static final long SESSION_TTL_MILLIS = 15 * 60 * 1000; // How long a verified login can be resumed by token
+    private static final int DB_POOL_SIZE = 4; // Database stage threads, each holding one JDBC connection
+    private static final int DB_QUEUE_CAPACITY = 256; // Pending database tasks before clients are told the server is busy
+    private static final int MAX_PENDING_PUSHES = 64; // Pushes waiting for a slow client before further pushes are refused
+    private static final int MAX_IN_FLIGHT = 16; // Pipelined commands per client before its reads are paused
+    private static final int DELIVERY_BATCH_SIZE = 50; // Queued messages pushed per delivery batch
+    private static final int DELIVERY_MAX_ATTEMPTS = 5; // Deliveries of an unacknowledged message before it is left to the inbox
+    private static final long REDELIVERY_MILLIS = 60 * 1000; // Batches of a crashed server are delivered again after this
+    private static final String QUEUED = "QUEUED"; // Forwarded to the node of a user when a message was queued for it
+    private static final String SPOOL_DIR = System.getProperty("spool.dir", "spool"); // Messages sent while a database is unavailable
+    private static final int SPOOL_BATCH_SIZE = 500; // Spooled messages stored per replay batch
+    private static final long SPOOL_CHECK_MILLIS = 1000; // Time between probes of unavailable databases
+    private static final int INBOX_CACHE_USERS = 10_000; // Users whose recent inbox is kept for outages
+    private static final int INBOX_CACHE_MESSAGES = 100; // Newest inbox messages kept per cached user
+    private static final long INBOX_CACHE_BYTES = 64L * 1024 * 1024; // Heap of cached messages before the least recently used users are dropped
+    private static final int MAX_CLIENT_MSG_ID_LENGTH = 64; // Longest client message ID of a SENDMSG
+    private static final String CLIENT_MSG_ID_PREFIX = "msgid="; // Marks the last field of a SENDMSG as its client message ID
+    private static final long MESSAGE_KEY_TTL_MILLIS = 24 * 60 * 60 * 1000; // Retries later than this are stored as new messages
+    private static final long MESSAGE_KEY_PURGE_MILLIS = 60 * 60 * 1000; // Time between purges of expired client message IDs
+    private static final long PRESENCE_TICK_MILLIS = 250; // Time between two presence and typing broadcasts
+    private static final long PRESENCE_DEBOUNCE_MILLIS = 2000; // Logins and logouts undone within this time are never announced
+    private static final long TYPING_INTERVAL_MILLIS = 3000; // Typing notices of one user to another passed on at most this often
+    private static final long PRESENCE_SNAPSHOT_MILLIS = 30 * 1000; // Time between full presence broadcasts to the other nodes
+    private static final int MAX_LINE_LENGTH = 128 * 1024; // Longest command line read; holds one base64 CHUNK with room to spare
+    private static final int MAX_MESSAGE_LENGTH = 8192; // Longest inline message; longer bodies are uploaded as blobs
+    private static final String BLOB_DIR = System.getProperty("blob.dir", "blobs"); // Directory of uploaded files; shared by every node of a cluster
+    private static final long MAX_BLOB_SIZE = Long.getLong("blob.maxMegabytes", 100) * 1024 * 1024; // Largest accepted upload
+    private static final int BLOB_POOL_SIZE = 2; // Threads reading and writing blob files
+    private static final int MAX_OPEN_UPLOADS = 10; // Uploads a user may have started and not committed
+    private static final long UPLOAD_TTL_MILLIS = 24 * 60 * 60 * 1000; // Uploads never committed are deleted after this time
+    private static final long UPLOAD_SWEEP_MILLIS = 60 * 60 * 1000; // Time between sweeps of expired uploads
+    private static final int MAX_PAGE_SIZE = 500; // Maximum messages returned by one INBOX, OUTBOX or SYNC
+    private static final int DEFAULT_USER_PAGE_SIZE = 50; // Users returned by LISTUSERS without a page size
+    private static final String DB_URL = "jdbc:postgresql://localhost:5432/postgres";
+    private static final String DB_USER = "postgres";
+    private static final String DB_PASSWORD = "123456";
+    private static final String SHARD_URLS = System.getProperty("db.shards", ""); // Comma-separated JDBC URLs of extra message shards
+    private static final long RETENTION_MAX_AGE_MILLIS = Long.getLong("retention.days", 0) * 24 * 60 * 60 * 1000; // 0 keeps messages forever
+    private static final int RETENTION_USER_CAP = Integer.getInteger("retention.userCap", 0); // 0 keeps every message of an inbox
+    private static final boolean RETENTION_ARCHIVE = Boolean.getBoolean("retention.archive"); // Move expired messages to messages_archive
+    private static final int RETENTION_BATCH_SIZE = 500; // Messages removed per retention batch
+    private static final long RETENTION_PAUSE_MILLIS = 50; // Pause between retention batches
+    private static final long RETENTION_INTERVAL_MILLIS = 10 * 60 * 1000; // Time between retention runs
+    private static final long IDLE_TIMEOUT_MILLIS = Long.getLong("session.idleTimeoutSeconds", 90) * 1000; // Sessions silent for longer are closed
+    private static final long REAPER_INTERVAL_MILLIS = 10 * 1000; // Time between idle session sweeps
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 24 * 60 * 60 * 1000; // Time between partition maintenance runs
+    private static final boolean CDS_TRAINING = Boolean.getBoolean("server.cdsTraining"); // Exit once started, to dump an AppCDS archive
+    private static final String AUTHENTICATION_FAILED = "Authentication Failed:::false"; // Default to non-admin for failed authentication
+    private static final String REVOKE_LINE = "REVOKE:::"; // Broadcast after a user is removed or their sessions are revoked
+    private static final String DIRECTORY_LINE = "DIRECTORY"; // Broadcast after a user mutation, so every node rebuilds its LISTUSERS snapshot
+    private static final String SESSION_LINE = "SESSION:::"; // Forwarded to the new owner of a user with a session token it should accept
+    private static final Credentials credentials = new Credentials(VERIFIER_POOL_SIZE, SESSION_TTL_MILLIS);
+    private static final Stage dbStage = new Stage("db", DB_POOL_SIZE, DB_QUEUE_CAPACITY);
+    // Sized so that every pipelined command of every connection fits and a response is never dropped
+    private static final Stage blobStage = new Stage("blob", BLOB_POOL_SIZE, THREAD_POOL_SIZE * MAX_IN_FLIGHT);
+    private static final Stage importStage = new Stage("import", IMPORT_POOL_SIZE, IMPORT_QUEUE_CAPACITY, Thread.MIN_PRIORITY);
 
     /**
-     * Main method to start the server.
+     * Main method to start the server. The listener is bound right away; the schema check and
+     * the database connections are prepared in parallel, and commands wait for them if needed.
      *
-     * @param args Command line arguments
+     * @param args Command line arguments: optional node ID (default 0) and client port (default 8000)
      */
     public static void main(String[] args) {
-        // Establish database connection
+        long started = System.nanoTime();
+        int nodeId = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        ids = new IdGenerator(nodeId);
+        db = new Database(DB_URL, DB_USER, DB_PASSWORD);
+        List<Database> shardList = new ArrayList<>(List.of(db));
+        for (String url : SHARD_URLS.split(",")) {
+            if (!url.isBlank()) {
+                shardList.add(new Database(url.trim(), DB_USER, DB_PASSWORD));
+            }
+        }
+        inboxCache = new InboxCache(INBOX_CACHE_USERS, INBOX_CACHE_MESSAGES, INBOX_CACHE_BYTES);
+        shards = new Shards(shardList, dbStage, inboxCache);
+        delivery = new Delivery(shards, dbStage, ids, DELIVERY_BATCH_SIZE, DELIVERY_MAX_ATTEMPTS, REDELIVERY_MILLIS);
+
+        // Bring every shard's schema up to date and insert the default admin user (alp) if not exists
+        dbReady = dbStage.submit(() -> {
+            for (Database shard : shards.all()) {
+                shard.migrate();
+            }
+            db.insertDefaultAdmin();
+            shards.pinAndLoadOverrides();
+            return null;
+        });
+        dbReady.exceptionally(e -> {
+            e.printStackTrace();
+            System.exit(1); // The server cannot work without its database
+            return null;
+        });
+
+        // Open the connections of the other database threads meanwhile; each of the first tasks starts its own thread
+        for (int i = 1; i < DB_POOL_SIZE; i++) {
+            dbStage.submit(() -> {
+                for (Database shard : shards.all()) {
+                    shard.warmUp();
+                }
+                return null;
+            });
+        }
+
+        directory = new UserDirectory(db, dbStage);
         try {
-            dbConnection = DriverManager.getConnection("jdbc:postgresql://localhost:5432/postgres", "postgres", "123456");
-        } catch (SQLException e) {
+            blobs = new BlobStore(Paths.get(BLOB_DIR), MAX_BLOB_SIZE, MAX_OPEN_UPLOADS, UPLOAD_TTL_MILLIS, db, dbStage, blobStage);
+            spool = new Spool(Paths.get(SPOOL_DIR), nodeId, shards, dbStage, SPOOL_BATCH_SIZE, Server::notifyQueued);
+        } catch (IOException e) {
             e.printStackTrace();
             return;
         }
 
-        // Execute initial script to create tables
+        // Join the cluster once the schema is current; until then this node owns every user
+        cluster = new Cluster(db, dbStage, new Cluster.Node(nodeId, NODE_HOST, port, port + LINK_PORT_OFFSET),
+                HEARTBEAT_INTERVAL_MILLIS, NODE_TTL_MILLIS, Server::receiveForwarded, Server::receiveBroadcast, Server::moveSessions, CLUSTER_SECRET);
         try {
-            db = new Database("jdbc:postgresql://localhost:5432/postgres", "postgres", "123456");
-            db.executeInitialScript();
-        } catch (SQLException e) {
+            cluster.listen();
+        } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
+        dbReady.thenRun(cluster::start);
+        dbReady.thenRun(shards::start);
+        dbReady.thenRun(() -> spool.start(SPOOL_CHECK_MILLIS)); // Also replays messages spooled before a restart
+        presence = new Presence(cluster, nodeId, PRESENCE_DEBOUNCE_MILLIS, TYPING_INTERVAL_MILLIS, PRESENCE_SNAPSHOT_MILLIS);
+        presence.start(PRESENCE_TICK_MILLIS);
 
-        // Insert a default admin user (alp) if not exists
-        try {
-            db.insertDefaultAdmin();
-        } catch (SQLException e) {
+        // Keep future monthly message partitions created ahead of time
+        maintenance.scheduleWithFixedDelay(() -> dbStage.submit(() -> {
+            for (Database shard : shards.all()) {
+                shard.ensureMessagePartitions(Database.PARTITION_MONTHS_AHEAD);
+            }
+            return null;
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        }), MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Delete uploads that were abandoned before their COMMIT
+        maintenance.scheduleWithFixedDelay(() -> blobs.expire().exceptionally(e -> {
             e.printStackTrace();
+            return null;
+        }), UPLOAD_SWEEP_MILLIS, UPLOAD_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Forget client message IDs once retries of their messages are no longer expected
+        maintenance.scheduleWithFixedDelay(() -> dbStage.submit(() -> {
+            Timestamp cutoff = new Timestamp(System.currentTimeMillis() - MESSAGE_KEY_TTL_MILLIS);
+            for (Database shard : shards.all()) {
+                shard.purgeMessageKeys(cutoff);
+            }
+            return null;
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        }), MESSAGE_KEY_PURGE_MILLIS, MESSAGE_KEY_PURGE_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Purge expired messages of every shard in the background
+        for (Database shard : shards.all()) {
+            RetentionJob job = new RetentionJob(shard, dbStage, RETENTION_MAX_AGE_MILLIS, RETENTION_USER_CAP,
+                    RETENTION_BATCH_SIZE, RETENTION_PAUSE_MILLIS, RETENTION_ARCHIVE);
+            job.start(RETENTION_INTERVAL_MILLIS);
+            retention.add(job);
         }
 
+        // Close sessions whose client disappeared without LOGOUT
+        maintenance.scheduleWithFixedDelay(Server::reapIdleSessions, REAPER_INTERVAL_MILLIS, REAPER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        // Forget session tokens that can no longer be resumed
+        maintenance.scheduleWithFixedDelay(credentials::sweep, SESSION_TTL_MILLIS, SESSION_TTL_MILLIS, TimeUnit.MILLISECONDS);
+
         // Start the server socket
         ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server started...");
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.printf("Server started in %d ms...%n", (System.nanoTime() - started) / 1_000_000);
+            if (CDS_TRAINING) {
+                dbReady.join();
+                System.out.printf("Database ready in %d ms, exiting training run.%n", (System.nanoTime() - started) / 1_000_000);
+                return;
+            }
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new ClientHandler(clientSocket));
+                ClientHandler handler = new ClientHandler(clientSocket);
+                sessions.add(handler);
+                threadPool.execute(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
             threadPool.shutdown();
-            try {
-                dbConnection.close();
-            } catch (SQLException e) {
-                e.printStackTrace();
+            presence.shutdown();
+            cluster.shutdown();
+            shards.shutdown();
+            spool.shutdown();
+            retention.forEach(RetentionJob::shutdown);
+            maintenance.shutdownNow();
+            dbStage.shutdown();
+            blobStage.shutdown();
+            importStage.shutdown();
+        }
+    }
+
+    /**
+     * Returns the statistics of every server stage.
+     *
+     * @return One line per stage, separated by ":::"
+     */
+    private static String stats() {
+        StringBuilder stats = new StringBuilder(credentials.getStage().stats() + ":::" + dbStage.stats() + ":::" + blobStage.stats() + ":::" + importStage.stats() + ":::" + Outbox.stats()
+                + ":::" + cluster.stats() + ":::" + shards.stats() + ":::" + delivery.stats() + ":::" + presence.stats() + ":::" + spool.stats() + ":::" + inboxCache.stats()
+                + ":::" + recentKeys.stats());
+        for (int i = 0; i < retention.size(); i++) {
+            stats.append(":::shard ").append(i).append(' ').append(retention.get(i).stats());
+            stats.append(":::shard ").append(i).append(' ').append(shards.all().get(i).getBreaker().stats());
+        }
+        return stats.append(":::sessions active=").append(sessions.size()).append(" reaped=").append(reapedSessions.get()).toString();
+    }
+
+    /**
+     * Wakes up delivery to the sessions of a user a message was queued for: on this node if the user
+     * has sessions here, otherwise on the node owning the user. Offline users get the message on their next login.
+     *
+     * @param username Receiver of the queued message
+     */
+    private static void notifyQueued(String username) {
+        if (!pokeLocal(username)) {
+            Cluster.Node owner = cluster.owner(username);
+            if (!cluster.isSelf(owner)) {
+                cluster.forward(owner, username, QUEUED);
+            }
+        }
+    }
+
+    /**
+     * Handles a line another node forwarded for a user of this node.
+     *
+     * @param username Username
+     * @param line     QUEUED, a typing notice, "SESSION:::token:::isAdmin:::expiresAt", or a line to push
+     */
+    private static void receiveForwarded(String username, String line) {
+        if (line.equals(QUEUED)) {
+            pokeLocal(username);
+        } else if (line.startsWith(SESSION_LINE)) {
+            String[] parts = line.split(":::");
+            credentials.adopt(parts[1], username, Boolean.parseBoolean(parts[2]), Long.parseLong(parts[3]));
+        } else if (line.startsWith(Presence.TYPING_LINE)) {
+            presence.typingForwarded(line.substring(Presence.TYPING_LINE.length()), username);
+        } else {
+            pushLocal(username, line);
+        }
+    }
+
+    /**
+     * Handles a line another node broadcast to every node.
+     *
+     * @param line Presence broadcast, "REVOKE:::username:::removed|sessions" or "DIRECTORY"
+     */
+    private static void receiveBroadcast(String line) {
+        if (line.startsWith(REVOKE_LINE)) {
+            String[] parts = line.split(":::");
+            revokeLocal(parts[1], parts[2].equals("removed"));
+        } else if (line.equals(DIRECTORY_LINE)) {
+            directory.invalidate();
+        } else {
+            presence.receive(line);
+        }
+    }
+
+    /**
+     * Moves the sessions of users this node no longer owns, after nodes joined or left the ring.
+     * Their clients resume on this node, which hands the session over and redirects them to the owner,
+     * so live notifications reach them again.
+     */
+    private static void moveSessions() {
+        for (ClientHandler session : sessions) {
+            String username = session.currentUsername;
+            if (username != null && session.sessionToken != null && !cluster.isSelf(cluster.owner(username))) {
+                session.move();
+            }
+        }
+    }
+
+    /**
+     * Marks the LISTUSERS snapshot stale on every node. Called after every user mutation.
+     */
+    private static void invalidateDirectory() {
+        directory.invalidate();
+        cluster.broadcast(DIRECTORY_LINE);
+    }
+
+    /**
+     * Revokes the sessions of a user on every node, and on removal also stops their logged in sessions.
+     *
+     * @param username Username
+     * @param removed  Whether the user was removed, rather than only their sessions revoked
+     */
+    private static void revoke(String username, boolean removed) {
+        revokeLocal(username, removed);
+        cluster.broadcast(REVOKE_LINE + username + ":::" + (removed ? "removed" : "sessions"));
+    }
+
+    /**
+     * Revokes the sessions of a user on this node.
+     *
+     * @param username Username
+     * @param removed  Whether the user was removed; their sessions then answer "You have been removed."
+     */
+    private static void revokeLocal(String username, boolean removed) {
+        if (removed) {
+            synchronized (validUsernames) {
+                validUsernames.removeIf(username::equals); // Every session of the user
+            }
+        }
+        credentials.revokeUser(username);
+        Set<ClientHandler> handlers = online.get(username);
+        if (handlers != null) {
+            handlers.forEach(handler -> handler.currentIsAdmin = false); // Open connections keep admin rights only after a new login
+        }
+    }
+
+    /**
+     * Wakes up delivery to every session of a user on this node.
+     *
+     * @param username Username
+     * @return true if the user has at least one session on this node
+     */
+    private static boolean pokeLocal(String username) {
+        Set<ClientHandler> handlers = online.get(username);
+        if (handlers == null) {
+            return false;
+        }
+        handlers.forEach(ClientHandler::pokeDelivery);
+        return !handlers.isEmpty();
+    }
+
+    /**
+     * Pushes a line to every session of a user on this node.
+     *
+     * @param username Username
+     * @param line     Line to push
+     * @return true if the user has at least one session on this node
+     */
+    private static boolean pushLocal(String username, String line) {
+        Set<ClientHandler> handlers = online.get(username);
+        if (handlers == null) {
+            return false;
+        }
+        handlers.forEach(handler -> handler.push(line));
+        return !handlers.isEmpty();
+    }
+
+    /**
+     * Closes every session that has sent nothing for longer than the idle timeout and has no command in progress.
+     * This also frees connections still waiting for a handler thread, which SO_TIMEOUT cannot reach.
+     */
+    private static void reapIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (ClientHandler session : sessions) {
+            if (session.isIdleSince(now - IDLE_TIMEOUT_MILLIS)) {
+                session.reap();
             }
         }
     }
 
     /**
      * ClientHandler class that handles individual client connections.
+     * The handler thread only reads and decodes commands; database work runs on the database stage
+     * and responses are written back by the connection's own outbox, in the order the commands arrived.
      */
     static class ClientHandler implements Runnable {
         private Socket socket;
-        private String currentUsername;
+        private volatile Outbox outbox;
+        private volatile String currentUsername;
+        private volatile String sessionToken;
+        private volatile boolean currentIsAdmin; // Admin flag of the session, checked by admin-only commands
+        private volatile Delivery.Receiver deliveries; // Delivery state while logged in
+        private volatile Presence.Session watcher; // Presence state while logged in
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final AtomicBoolean reaped = new AtomicBoolean();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private CompletableFuture<Void> tail = dbReady; // Completes when the last queued response is written; commands start once the database is ready
 
         /**
          * Constructor for ClientHandler.
@@ -83,93 +440,63 @@ public class Server {
         }
 
         /**
-         * Method to handle client commands.
+         * Method to read and queue client commands.
          */
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            try (LineReader in = new LineReader(new InputStreamReader(socket.getInputStream()), MAX_LINE_LENGTH);
                  PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                outbox = new Outbox(out, "write-" + socket.getPort(), MAX_PENDING_PUSHES);
+                socket.setSoTimeout((int) IDLE_TIMEOUT_MILLIS);
 
                 String command;
                 while ((command = in.readLine()) != null) {
-                    String[] parts = command.split(":::");
-                    synchronized (db) { // Ensure thread safety for database operations
-                        if (requiresValidUser(parts[0]) && !isValidUser(currentUsername)) {
-                            out.println("You have been removed.");
-                            continue;
+                    lastActivity = System.currentTimeMillis();
+                    if (command.equals(LineReader.TOO_LONG)) {
+                        command = "TOOLONG"; // Answered in order like any other command
+                    }
+                    Request request = Request.parse(command);
+                    if (request.getName().equals("ACK")) { // Acknowledges a delivery batch; has no response
+                        Delivery.Receiver current = deliveries;
+                        if (current != null && hasArgs(request, 1, 1)) { // A malformed ACK is ignored like an unknown batch
+                            current.ack(Long.parseLong(request.arg(1)));
                         }
-                        String response;
-                        switch (parts[0]) {
-                            case "LOGIN":
-                                String username = parts[1];
-                                String password = parts[2];
-                                response = db.authenticate(username, password);
-                                out.println(response);
-                                if (response.startsWith("Authenticated")) {
-                                    currentUsername = username;
-                                    synchronized (validUsernames) {
-                                        validUsernames.add(username);
-                                    }
-                                }
-                                break;
-                            case "LOGOUT":
-                                out.println("Logged out.");
-                                synchronized (validUsernames) {
-                                    validUsernames.remove(currentUsername);
-                                }
-                                break;
-                            case "INBOX":
-                                String inboxUsername = parts[1];
-                                response = db.readInbox(inboxUsername);
-                                out.println(response);
-                                break;
-                            case "OUTBOX":
-                                String outboxUsername = parts[1];
-                                response = db.readOutbox(outboxUsername);
-                                out.println(response);
-                                break;
-                            case "SENDMSG":
-                                String sender = parts[1];
-                                String receiver = parts[2];
-                                String content = parts[3];
-                                Message message = new Message(sender, receiver, content, new Timestamp(System.currentTimeMillis()));
-                                response = db.sendMessage(message);
-                                out.println(response);
-                                break;
-                            case "ADDUSER":
-                                User newUser = new User(parts[1], parts[2], parts[3], parts[4], Date.valueOf(parts[5]), parts[6], parts[7], Boolean.parseBoolean(parts[8]));
-                                response = db.createUser(newUser);
-                                out.println(response);
-                                break;
-                            case "UPDATEUSER":
-                                String usernameToUpdate = parts[1];
-                                String fieldToUpdate = parts[2];
-                                String newVal = parts[3];
-                                response = db.updateUser(usernameToUpdate, fieldToUpdate, newVal);
-                                out.println(response);
-                                break;
-                            case "REMOVEUSER":
-                                String userToRemove = parts[1];
-                                response = db.deleteUser(userToRemove);
-                                out.println(response);
-                                if (response.equals("User deleted successfully.")) {
-                                    synchronized (validUsernames) {
-                                        validUsernames.remove(userToRemove);
-                                    }
-                                }
-                                break;
-                            case "LISTUSERS":
-                                response = db.listUsers();
-                                out.println(response);
-                                break;
-                            default:
-                                out.println("Unknown command.");
+                        continue;
+                    }
+                    if (request.getName().equals("TYPING")) { // TYPING:::receiver while composing a message; has no response
+                        Presence.Session current = watcher;
+                        if (current != null && request.size() > 1) {
+                            presence.typing(currentUsername, request.arg(1));
                         }
+                        continue;
                     }
+                    // IMPORTUSERS streams its rows on the following lines, so they are read here rather than in order
+                    CompletableFuture<String> imported = request.getName().equals("IMPORTUSERS") ? importUsers(in) : null;
+                    inFlight.acquire(); // Stop reading when too many commands of this client are pending
+                    tail = tail.thenCompose(v -> handle(request, imported))
+                            .exceptionally(e -> {
+                                inFlight.release(); // The response could not be queued for writing
+                                return null;
+                            });
+                }
+                tail.join();
+            } catch (SocketTimeoutException e) {
+                reap(); // No command and no PING within the idle timeout
+            } catch (IOException | InterruptedException e) {
+                if (!reaped.get()) {
+                    e.printStackTrace();
                 }
-            } catch (IOException | SQLException e) {
-                e.printStackTrace();
             } finally {
+                if (outbox != null) {
+                    outbox.close();
+                }
+                sessions.remove(this);
+                goOffline();
+                if (sessionToken != null) { // Disconnected without LOGOUT; the token stays valid for RESUME
+                    synchronized (validUsernames) {
+                        validUsernames.remove(currentUsername);
+                    }
+                }
                 try {
                     socket.close();
                 } catch (IOException e) {
@@ -178,6 +505,522 @@ public class Server {
             }
         }
 
+        /**
+         * Determines whether this session can be reaped.
+         *
+         * @param threshold Time in epoch milliseconds; activity before it counts as idle
+         * @return true if the client has been silent since before the threshold and no command is pending
+         */
+        boolean isIdleSince(long threshold) {
+            return lastActivity < threshold && inFlight.availablePermits() == MAX_IN_FLIGHT;
+        }
+
+        /**
+         * Closes the session because another node owns its user now. The client is told with
+         * "PUSH:::MOVED" and resumes the session, which this node then hands over to the owner.
+         */
+        void move() {
+            if (reaped.compareAndSet(false, true)) {
+                outbox.respond("PUSH:::MOVED", () -> {
+                    try {
+                        socket.close(); // Unblocks the handler thread, which then cleans up the session
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Closes the session because its client stopped responding.
+         */
+        void reap() {
+            if (reaped.compareAndSet(false, true)) {
+                reapedSessions.incrementAndGet();
+                try {
+                    socket.close(); // Unblocks the handler thread, which then cleans up the session
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Executes a request, writes its response and traces both. Runs after the previous request of this client has been answered.
+         *
+         * @param request  Decoded request
+         * @param imported Result of an IMPORTUSERS whose rows have already been read, or null
+         * @return Future completing when the response has been written
+         */
+        private CompletableFuture<Void> handle(Request request, CompletableFuture<String> imported) {
+            Trace.CommandEvent event = Trace.startCommand(request, currentUsername);
+            CompletableFuture<String> response;
+            try {
+                response = imported != null ? imported.whenComplete((r, e) -> invalidateDirectory()) : execute(request);
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e); // Still answered, so the client never waits forever
+            }
+            return response.exceptionally(this::failure)
+                    .thenCompose(line -> outbox.respond(line, () -> finish(line, event)));
+        }
+
+        /**
+         * Starts executing a request. Runs after the previous request of this client has been answered.
+         *
+         * @param request Decoded request
+         * @return Future completing with the response line
+         */
+        private CompletableFuture<String> execute(Request request) {
+            if (requiresValidUser(request.getName()) && !isValidUser(currentUsername)) {
+                return CompletableFuture.completedFuture("You have been removed.");
+            }
+            if (requiresAdmin(request.getName()) && !currentIsAdmin) {
+                return CompletableFuture.completedFuture("Access denied.");
+            }
+            switch (request.getName()) {
+                case "LOGIN":
+                    Cluster.Node owner = cluster.owner(request.arg(1));
+                    if (!cluster.isSelf(owner)) {
+                        // The client reconnects to the owning node and logs in there
+                        return CompletableFuture.completedFuture("Redirect:::" + owner.getHost() + ":::" + owner.getPort());
+                    }
+                    return login(request.arg(1), request.arg(2));
+                case "RESUME":
+                    return resume(request.arg(1));
+                case "LOGOUT":
+                    credentials.revokeToken(sessionToken);
+                    sessionToken = null;
+                    goOffline();
+                    synchronized (validUsernames) {
+                        validUsernames.remove(currentUsername);
+                    }
+                    return CompletableFuture.completedFuture("Logged out.");
+                case "STATS":
+                    return CompletableFuture.completedFuture(stats());
+                case "PING":
+                    return CompletableFuture.completedFuture("PONG");
+                case "TOOLONG":
+                    return CompletableFuture.completedFuture("Error: Line longer than " + MAX_LINE_LENGTH + " characters.");
+                case "ADDUSER":
+                    // Password hashing runs on the verifier pool, before the database stage
+                    return credentials.hashAsync(request.arg(2)).thenCompose(hash -> dbStage.submit(() -> {
+                        User newUser = new User(request.arg(1), hash, request.arg(3), request.arg(4), Date.valueOf(request.arg(5)), request.arg(6), request.arg(7), Boolean.parseBoolean(request.arg(8)));
+                        return db.createUser(newUser);
+                    })).whenComplete((r, e) -> invalidateDirectory());
+                case "UPDATEUSER":
+                    CompletableFuture<String> newVal = request.arg(2).equals("password")
+                            ? credentials.hashAsync(request.arg(3))
+                            : CompletableFuture.completedFuture(request.arg(3));
+                    return newVal.thenCompose(val -> dbStage.submit(() -> updateUser(request.arg(1), request.arg(2), val)))
+                            .whenComplete((r, e) -> invalidateDirectory());
+                case "LISTUSERS":
+                    // LISTUSERS:::pageSize:::afterUsername:::prefix, with "-" for a missing cursor or prefix
+                    int userPageSize = request.size() > 1 ? Math.min(Integer.parseInt(request.arg(1)), MAX_PAGE_SIZE) : DEFAULT_USER_PAGE_SIZE;
+                    String after = request.size() > 2 && !request.arg(2).equals(UserDirectory.NO_CURSOR) ? request.arg(2) : "";
+                    String prefix = request.size() > 3 && !request.arg(3).equals(UserDirectory.NO_CURSOR) ? request.arg(3) : "";
+                    return directory.page(prefix, after, userPageSize);
+                case "REMOVEUSER":
+                    return dbStage.submit(() -> dispatch(request)).whenComplete((r, e) -> invalidateDirectory());
+                case "INBOX":
+                    return shards.readInbox(request.arg(1), cursor(request), pageSize(request));
+                case "OUTBOX":
+                    return shards.readOutbox(request.arg(1), cursor(request), pageSize(request));
+                case "SYNC":
+                    return shards.syncMessages(request.arg(1), cursor(request), pageSize(request));
+                case "SUBSCRIBE":
+                    // SUBSCRIBE:::user:::user... answers the current states, later changes are pushed
+                    Presence.Session subscriber = watcher;
+                    return CompletableFuture.completedFuture(subscriber == null ? "Please login first."
+                            : subscriber.subscribe(Arrays.asList(request.getArgs())));
+                case "UNSUBSCRIBE":
+                    Presence.Session unsubscriber = watcher;
+                    if (unsubscriber != null) {
+                        unsubscriber.unsubscribe(Arrays.asList(request.getArgs()));
+                    }
+                    return CompletableFuture.completedFuture("Unsubscribed.");
+                case "RESHARD":
+                    // RESHARD:::username:::shard moves the inbox of a user while it stays online
+                    if (request.size() < 3 || !request.arg(2).matches("\\d{1,9}")) {
+                        return CompletableFuture.completedFuture("Error: Usage RESHARD:::username:::shard.");
+                    }
+                    return shards.reshard(request.arg(1), Integer.parseInt(request.arg(2)));
+                case "SENDMSG":
+                    // SENDMSG:::sender:::receiver:::content[:::msgid=clientMsgId]; a retry with the same clientMsgId is stored once
+                    if (request.arg(3).length() > MAX_MESSAGE_LENGTH) {
+                        return CompletableFuture.completedFuture("Error: Message longer than " + MAX_MESSAGE_LENGTH + " characters; send it as a file.");
+                    }
+                    String clientMsgId = clientMsgId(request);
+                    if (clientMsgId != null && (clientMsgId.isBlank() || clientMsgId.length() > MAX_CLIENT_MSG_ID_LENGTH)) {
+                        return CompletableFuture.completedFuture("Error: Client message ID must be 1 to " + MAX_CLIENT_MSG_ID_LENGTH + " characters.");
+                    }
+                    return dbStage.submit(() -> dispatch(request));
+                case "UPLOAD":
+                    // UPLOAD:::receiver:::name:::size:::sha256 starts a file transfer to receiver
+                    if (!hasArgs(request, 4, 3)) {
+                        return CompletableFuture.completedFuture("Error: Usage UPLOAD:::receiver:::name:::size:::sha256.");
+                    }
+                    return blobs.start(ids.nextId(), currentUsername, request.arg(1), request.arg(2), Long.parseLong(request.arg(3)), request.arg(4));
+                case "CHUNK":
+                    // CHUNK:::blobId:::offset:::base64 appends at most one chunk size of bytes
+                    if (!hasArgs(request, 3, 1, 2)) { // Also an empty chunk, whose trailing field the split drops
+                        return CompletableFuture.completedFuture("Error: Usage CHUNK:::blobId:::offset:::base64.");
+                    }
+                    return blobs.writeChunk(currentUsername, Long.parseLong(request.arg(1)), Long.parseLong(request.arg(2)), request.arg(3));
+                case "UPLOADSTATUS":
+                    if (!hasArgs(request, 1, 1)) {
+                        return CompletableFuture.completedFuture("Error: Usage UPLOADSTATUS:::blobId.");
+                    }
+                    return blobs.status(currentUsername, Long.parseLong(request.arg(1)));
+                case "COMMIT":
+                    // Verifies the upload and sends the receiver a message referring to it
+                    if (!hasArgs(request, 1, 1)) {
+                        return CompletableFuture.completedFuture("Error: Usage COMMIT:::blobId.");
+                    }
+                    StringBuilder error = new StringBuilder();
+                    return blobs.commit(currentUsername, Long.parseLong(request.arg(1)), error).thenCompose(blob -> blob == null
+                            ? CompletableFuture.completedFuture(error.toString())
+                            : dbStage.submit(() -> send(blob.getOwner(), blob.getReceiver(), blob.toReference(), null)));
+                case "DOWNLOAD":
+                    // DOWNLOAD:::blobId:::offset returns the chunk starting at offset
+                    if (!hasArgs(request, 1, 1) || (request.size() > 2 && !hasArgs(request, 2, 2))) {
+                        return CompletableFuture.completedFuture("Error: Usage DOWNLOAD:::blobId[:::offset].");
+                    }
+                    return blobs.readChunk(currentUsername, Long.parseLong(request.arg(1)), request.size() > 2 ? Long.parseLong(request.arg(2)) : 0);
+                default:
+                    return CompletableFuture.completedFuture("Unknown command.");
+            }
+        }
+
+        /**
+         * Reads the rows of an IMPORTUSERS command up to the "END" line and starts loading them.
+         *
+         * @param in Reader of the client connection
+         * @return Future completing with the import report
+         * @throws IOException if an I/O error occurs while reading the rows
+         */
+        private CompletableFuture<String> importUsers(LineReader in) throws IOException {
+            dbReady.join();
+            boolean valid = isValidUser(currentUsername);
+            boolean allowed = valid && currentIsAdmin;
+            UserImport userImport = new UserImport(db, dbStage, importStage, ids.nextId());
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("END")) {
+                if (allowed && (line.equals(LineReader.TOO_LONG) || !line.isBlank())) { // An over-long row is reported as invalid
+                    userImport.addLine(line);
+                }
+            }
+            if (!valid) {
+                return CompletableFuture.completedFuture("You have been removed.");
+            }
+            return allowed ? userImport.finish() : CompletableFuture.completedFuture("Error: Only admins can import users.");
+        }
+
+        /**
+         * Runs a plain database command. Called on the database stage.
+         *
+         * @param request Decoded request
+         * @return Response line
+         */
+        private String dispatch(Request request) {
+            String response;
+            switch (request.getName()) {
+                case "SENDMSG":
+                    return send(request.arg(1), request.arg(2), request.arg(3), clientMsgId(request));
+                case "REMOVEUSER":
+                    String userToRemove = request.arg(1);
+                    response = shards.deleteUser(userToRemove);
+                    if (response.equals("User deleted successfully.")) {
+                        revoke(userToRemove, true);
+                    }
+                    return response;
+                default:
+                    return "Unknown command.";
+            }
+        }
+
+        /**
+         * Stores a message and wakes up its delivery. Called on the database stage.
+         * While the database cannot be reached, the message is spooled and stored once it is back.
+         * A message with a client message ID used before by the same sender is not stored again;
+         * the response carries the ID of the original message.
+         *
+         * @param sender      Sending user
+         * @param receiver    Receiving user
+         * @param content     Message content, or a blob reference
+         * @param clientMsgId ID the client chose for the message, or null
+         * @return Send message response, "Message sent.:::id" on success
+         */
+        private String send(String sender, String receiver, String content, String clientMsgId) {
+            if (clientMsgId != null) {
+                Long sent = recentKeys.get(sender, clientMsgId);
+                if (sent != null) {
+                    return "Message sent.:::" + sent; // A retry answered from memory
+                }
+            }
+            long id = ids.nextId();
+            Message message = new Message(id, sender, receiver, content, new Timestamp(IdGenerator.timestampOf(id)));
+            String response;
+            try {
+                response = shards.sendMessage(message, clientMsgId);
+            } catch (SQLException e) {
+                if (!CircuitBreaker.isConnectionFailure(e)) {
+                    e.printStackTrace();
+                    return "An error occurred while sending the message.";
+                }
+                try {
+                    response = spool.append(message, clientMsgId);
+                    inboxCache.add(message);
+                    if (clientMsgId != null) {
+                        recentKeys.put(sender, clientMsgId, id, false); // Until the replay records the key in message_keys
+                    }
+                    return response; // Delivered after the replay
+                } catch (IOException spoolError) {
+                    spoolError.printStackTrace();
+                    return "An error occurred while sending the message.";
+                }
+            }
+            if (!response.startsWith("Message sent.")) {
+                return response;
+            }
+            boolean stored = response.equals("Message sent.:::" + id);
+            if (clientMsgId != null) {
+                recentKeys.put(sender, clientMsgId, Long.parseLong(response.substring("Message sent.:::".length())), !stored);
+            }
+            if (stored) {
+                notifyQueued(receiver);
+            }
+            return response;
+        }
+
+        /**
+         * Checks that a request has enough arguments and that the numeric ones are numbers.
+         *
+         * @param request Decoded request
+         * @param count   Number of arguments required, not counting the command name
+         * @param numeric Positions of the arguments that must be non-negative numbers
+         * @return true if the request can be parsed
+         */
+        private static boolean hasArgs(Request request, int count, int... numeric) {
+            if (request.size() <= count) {
+                return false;
+            }
+            for (int index : numeric) {
+                if (!request.arg(index).matches("\\d{1,18}")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the client message ID of a SENDMSG. It is the last field and starts with "msgid=",
+         * so a fragment of content that contains the separator is never taken for the ID.
+         *
+         * @param request Decoded SENDMSG
+         * @return Client message ID, or null if the command carries none
+         */
+        private String clientMsgId(Request request) {
+            String last = request.arg(request.size() - 1);
+            return request.size() > 4 && last.startsWith(CLIENT_MSG_ID_PREFIX) ? last.substring(CLIENT_MSG_ID_PREFIX.length()) : null;
+        }
+
+        /**
+         * Returns the optional cursor of a message list command, e.g. "INBOX:::alp:::afterId:::limit".
+         *
+         * @param request Decoded request
+         * @return ID of the last message the client has seen, or 0 for the first page
+         */
+        private long cursor(Request request) {
+            return request.size() > 2 ? Long.parseLong(request.arg(2)) : 0;
+        }
+
+        /**
+         * Returns the optional page size of a message list command, capped at MAX_PAGE_SIZE.
+         *
+         * @param request Decoded request
+         * @return Number of messages to return
+         */
+        private int pageSize(Request request) {
+            return request.size() > 3 ? Math.min(Integer.parseInt(request.arg(3)), MAX_PAGE_SIZE) : MAX_PAGE_SIZE;
+        }
+
+        /**
+         * Updates a user and revokes their sessions after a password or admin status change. Called on the database stage.
+         *
+         * @param usernameToUpdate Username of the user to update
+         * @param fieldToUpdate    Field to update
+         * @param newVal           New value for the field, already hashed for passwords
+         * @return Update user response
+         * @throws SQLException if a database access error occurs
+         */
+        private String updateUser(String usernameToUpdate, String fieldToUpdate, String newVal) throws SQLException {
+            String response = db.updateUser(usernameToUpdate, fieldToUpdate, newVal);
+            if ((fieldToUpdate.equals("password") || fieldToUpdate.equals("is_admin")) && response.equals("User update successful.")) {
+                revoke(usernameToUpdate, false);
+            }
+            return response;
+        }
+
+        /**
+         * Authenticates a user. The stored password is read on the database stage,
+         * while verification and legacy plaintext migration run on the verifier pool.
+         *
+         * @param username Username
+         * @param password Password
+         * @return Future completing with the authentication response
+         */
+        private CompletableFuture<String> login(String username, String password) {
+            return dbStage.submit(() -> db.findCredentials(username)).thenCompose(stored -> {
+                if (stored == null) {
+                    return CompletableFuture.completedFuture(AUTHENTICATION_FAILED);
+                }
+                return credentials.verify(password, stored[0]).thenCompose(matches -> {
+                    if (!matches) {
+                        return CompletableFuture.completedFuture(AUTHENTICATION_FAILED);
+                    }
+                    CompletableFuture<Void> upgrade = CompletableFuture.completedFuture(null);
+                    if (!Credentials.isHashed(stored[0])) {
+                        upgrade = credentials.hashAsync(password).thenCompose(hash -> dbStage.submit(() -> {
+                            db.upgradePassword(username, password, hash);
+                            return null;
+                        }));
+                    }
+                    return upgrade.thenApply(v -> {
+                        boolean isAdmin = Boolean.parseBoolean(stored[1]);
+                        startSession(username, credentials.issueToken(username, isAdmin), isAdmin);
+                        return "Authenticated:::" + isAdmin + ":::" + sessionToken;
+                    });
+                });
+            });
+        }
+
+        /**
+         * Resumes a previously verified session without re-hashing the password.
+         * If another node owns the user by now, the session is handed over to it and the client is redirected there.
+         *
+         * @param token Session token returned by a successful login
+         * @return Future completing with the authentication response, or "Redirect:::host:::port"
+         */
+        private CompletableFuture<String> resume(String token) {
+            Credentials.Session session = credentials.resume(token);
+            if (session == null) {
+                return CompletableFuture.completedFuture(AUTHENTICATION_FAILED);
+            }
+            Cluster.Node owner = cluster.owner(session.getUsername());
+            if (!cluster.isSelf(owner)) {
+                String handover = SESSION_LINE + token + ":::" + session.isAdmin() + ":::" + session.getExpiresAt();
+                return cluster.forward(owner, session.getUsername(), handover).thenApply(sent -> {
+                    if (!sent) {
+                        return startSession(session, token); // Owner unreachable; keep the session here
+                    }
+                    credentials.revokeToken(token);
+                    return "Redirect:::" + owner.getHost() + ":::" + owner.getPort();
+                });
+            }
+            return CompletableFuture.completedFuture(startSession(session, token));
+        }
+
+        /**
+         * Marks this connection as logged in with a resumed session.
+         *
+         * @param session Resumed session
+         * @param token   Session token
+         * @return Authentication response
+         */
+        private String startSession(Credentials.Session session, String token) {
+            startSession(session.getUsername(), token, session.isAdmin());
+            return "Authenticated:::" + session.isAdmin() + ":::" + token;
+        }
+
+        /**
+         * Marks this connection as logged in.
+         *
+         * @param username Username
+         * @param token    Session token
+         * @param isAdmin  Whether the user is an admin
+         */
+        private void startSession(String username, String token, boolean isAdmin) {
+            goOffline(); // A previous login on this connection
+            currentUsername = username;
+            sessionToken = token;
+            currentIsAdmin = isAdmin;
+            synchronized (validUsernames) {
+                validUsernames.add(username);
+            }
+            online.computeIfAbsent(username, key -> ConcurrentHashMap.newKeySet()).add(this);
+            deliveries = delivery.open(username, this::push);
+            watcher = presence.join(username, this::push);
+        }
+
+        /**
+         * Wakes up delivery to this connection.
+         */
+        void pokeDelivery() {
+            Delivery.Receiver current = deliveries;
+            if (current != null) {
+                current.poke();
+            }
+        }
+
+        /**
+         * Stops pushing to this connection and returns its unacknowledged delivery batch to the queue.
+         */
+        private void goOffline() {
+            Delivery.Receiver current = deliveries;
+            deliveries = null;
+            if (current != null) {
+                current.close();
+            }
+            Presence.Session session = watcher;
+            watcher = null;
+            if (session != null) {
+                session.close();
+            }
+            if (currentUsername != null) {
+                online.computeIfPresent(currentUsername, (key, handlers) -> {
+                    handlers.remove(this);
+                    return handlers.isEmpty() ? null : handlers;
+                });
+            }
+        }
+
+        /**
+         * Queues an unsolicited line, such as a new message notification, for writing to the client.
+         * Pushes start with "PUSH:::" so the client can tell them from command responses.
+         *
+         * @param line Line to push
+         * @return true if the line was queued, false if too many pushes are waiting for this client
+         */
+        boolean push(String line) {
+            return outbox.push(line);
+        }
+
+        /**
+         * Converts a failed request into a response line.
+         *
+         * @param error Failure of the request
+         * @return Response line
+         */
+        private String failure(Throwable error) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof RejectedExecutionException) {
+                return "Server busy, please try again.";
+            }
+            cause.printStackTrace();
+            return "An error occurred while processing the command.";
+        }
+
+        /**
+         * Completes a command once its response line is written. Called on the writer thread of the outbox.
+         *
+         * @param response Response line
+         * @param event    Trace event of the command
+         */
+        private void finish(String response, Trace.CommandEvent event) {
+            inFlight.release();
+            Trace.finishCommand(event, response.length() + 1);
+        }
+
         /**
          * Check if the username is valid.
          *
@@ -200,11 +1043,38 @@ public class Server {
             switch (command) {
                 case "INBOX":
                 case "OUTBOX":
+                case "SYNC":
                 case "SENDMSG":
                 case "ADDUSER":
                 case "UPDATEUSER":
                 case "REMOVEUSER":
                 case "LISTUSERS":
+                case "IMPORTUSERS":
+                case "STATS":
+                case "RESHARD":
+                case "SUBSCRIBE":
+                case "UNSUBSCRIBE":
+                case "UPLOAD":
+                case "CHUNK":
+                case "UPLOADSTATUS":
+                case "COMMIT":
+                case "DOWNLOAD":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Determine if a command is reserved for admins, checked against the admin flag of the session.
+         *
+         * @param command Command to check
+         * @return true if only admins may run the command, false otherwise
+         */
+        private boolean requiresAdmin(String command) {
+            switch (command) {
+                case "STATS":
+                case "RESHARD":
                     return true;
                 default:
                     return false;
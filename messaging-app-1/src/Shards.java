@@ -0,0 +1,460 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Shards class that spreads messages over several databases by receiver.
+ * A message is stored on the shard of its receiver, so an inbox is read from one shard,
+ * while outbox and sync pages are gathered from every shard in parallel and merged by ID,
+ * which orders them by time. Shard 0 also holds the users and every other table.
+ */
+public class Shards {
+    private static final long OVERRIDE_REFRESH_MILLIS = 5000; // Time between reloads of moved users, also on other nodes
+    private static final int MOVE_BATCH_SIZE = 500; // Messages copied per step of a move
+
+    private final List<Database> shards;
+    private final Stage dbStage;
+    private final InboxCache inboxCache;
+    private volatile Map<String, int[]> overrides = Map.of(); // Username -> {shard, previous shard or -1}
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "shards"));
+    private final ExecutorService mover = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "reshard"));
+
+    /**
+     * Constructor for Shards.
+     *
+     * @param shards  Message databases; the first one also holds the users
+     * @param dbStage    Stage the shard queries run on
+     * @param inboxCache Recent inbox messages, served while a shard is unavailable
+     */
+    public Shards(List<Database> shards, Stage dbStage, InboxCache inboxCache) {
+        this.shards = shards;
+        this.dbStage = dbStage;
+        this.inboxCache = inboxCache;
+    }
+
+    /**
+     * Returns the database holding the users and every table that is not sharded.
+     *
+     * @return Shard 0
+     */
+    public Database primary() {
+        return shards.get(0);
+    }
+
+    /**
+     * Returns every shard.
+     *
+     * @return Shards in shard order
+     */
+    public List<Database> all() {
+        return shards;
+    }
+
+    /**
+     * Loads the moved users. Called on the database stage during startup.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void loadOverrides() throws SQLException {
+        overrides = primary().loadShardOverrides();
+    }
+
+    /**
+     * Pins the users whose hash placement changed because shards were added, then loads the moved users.
+     * Called on the database stage during startup.
+     *
+     * @throws SQLException if a database access error occurs
+     */
+    public void pinAndLoadOverrides() throws SQLException {
+        int pinned = primary().pinShards(shards.size());
+        if (pinned > 0) {
+            System.out.printf("Pinned %d users to their shard after adding shards.%n", pinned);
+        }
+        loadOverrides();
+    }
+
+    /**
+     * Reloads the moved users periodically, so moves started on other nodes are picked up.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> dbStage.submit(() -> {
+            loadOverrides();
+            return null;
+        }).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        }), OVERRIDE_REFRESH_MILLIS, OVERRIDE_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the shard new messages for a user are stored on.
+     *
+     * @param username Receiving user
+     * @return Shard index
+     */
+    public int shardOf(String username) {
+        int[] override = overrides.get(username);
+        return override != null ? override[0] : hashShard(username, shards.size());
+    }
+
+    /**
+     * Returns the shard a user is placed on by hash, unless pinned or moved in user_shards.
+     *
+     * @param username Username
+     * @param shards   Number of message shards
+     * @return Shard index
+     */
+    public static int hashShard(String username, int shards) {
+        return Math.floorMod(username.hashCode(), shards);
+    }
+
+    /**
+     * Returns the database new messages for a user are stored on.
+     *
+     * @param username Receiving user
+     * @return Shard database
+     */
+    public Database of(String username) {
+        return shards.get(shardOf(username));
+    }
+
+    /**
+     * Reads a page of the inbox of a user from its shard, and also from its previous shard while it is being moved.
+     * The last page, which holds the newest messages, refreshes the inbox cache; while a shard cannot be reached,
+     * the page is read from the inbox cache instead.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Future completing with the inbox messages as a single string separated by ":::"
+     */
+    public CompletableFuture<String> readInbox(String username, long afterId, int limit) {
+        int[] override = overrides.get(username);
+        CompletableFuture<String> page;
+        if (override != null && override[1] >= 0) {
+            List<Database> targets = List.of(shards.get(override[0]), shards.get(override[1]));
+            page = gather(targets, shard -> shard.readInbox(username, afterId, limit), limit).thenApply(messages -> {
+                if (messages.size() < limit) {
+                    List<Message> newest = messages.subList(Math.max(messages.size() - inboxCache.getMessagesPerUser(), 0), messages.size());
+                    inboxCache.remember(username, newest.stream().map(CompactMessage::of).collect(Collectors.toList()));
+                }
+                return format(messages);
+            });
+        } else {
+            Database shard = of(username);
+            page = dbStage.submit(() -> {
+                StringBuilder out = new StringBuilder();
+                List<CompactMessage> rows = new ArrayList<>();
+                if (shard.appendInbox(username, afterId, limit, out, rows, inboxCache.getMessagesPerUser()) < limit) {
+                    inboxCache.remember(username, rows);
+                }
+                return out.toString();
+            });
+        }
+        page = page.handle((response, error) -> {
+            if (error == null) {
+                return response;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof SQLException && CircuitBreaker.isConnectionFailure((SQLException) cause)) {
+                String cached = inboxCache.read(username, afterId, limit);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            throw new CompletionException(cause);
+        });
+        return respond(page, "An error occurred while reading the inbox.");
+    }
+
+    /**
+     * Reads a page of the outbox of a user from every shard.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Future completing with the outbox messages as a single string separated by ":::"
+     */
+    public CompletableFuture<String> readOutbox(String username, long afterId, int limit) {
+        CompletableFuture<String> page = shards.size() == 1
+                ? dbStage.submit(() -> encode(out -> primary().appendOutbox(username, afterId, limit, out)))
+                : gather(shards, shard -> shard.readOutbox(username, afterId, limit), limit).thenApply(Shards::format);
+        return respond(page, "An error occurred while reading the outbox.");
+    }
+
+    /**
+     * Reads a page of all messages sent or received by a user from every shard.
+     *
+     * @param username Username
+     * @param afterId  Only messages with a greater ID are returned; 0 for the first page
+     * @param limit    Maximum number of messages to return
+     * @return Future completing with the messages as a single string separated by ":::"
+     */
+    public CompletableFuture<String> syncMessages(String username, long afterId, int limit) {
+        CompletableFuture<String> page = shards.size() == 1
+                ? dbStage.submit(() -> encode(out -> primary().appendSync(username, afterId, limit, out)))
+                : gather(shards, shard -> shard.syncMessages(username, afterId, limit), limit).thenApply(Shards::format);
+        return respond(page, "An error occurred while syncing messages.");
+    }
+
+    /**
+     * Stores a message on the shard of its receiver. Called on the database stage.
+     *
+     * @param message     Message object, with its ID already assigned
+     * @param clientMsgId ID the client chose for the message, or null
+     * @return Send message response, "Message sent.:::id" on success, with the original ID for a retry
+     * @throws SQLException if a database access error occurs
+     */
+    public String sendMessage(Message message, String clientMsgId) throws SQLException {
+        if (!primary().userExists(message.getReceiver())) {
+            return "Error: Receiver does not exist.";
+        }
+        String response = of(message.getReceiver()).sendMessage(message, clientMsgId);
+        if (response.equals("Message sent.:::" + message.getId())) {
+            inboxCache.add(message);
+        }
+        return response;
+    }
+
+    /**
+     * Deletes a user and detaches its messages on every shard. Called on the database stage.
+     *
+     * @param username Username of the user to delete
+     * @return Delete user response
+     */
+    public String deleteUser(String username) {
+        String response = primary().deleteUser(username);
+        if (response.equals("User deleted successfully.")) {
+            try {
+                for (Database shard : shards) {
+                    shard.detachUser(username);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace(); // The user is gone; remaining messages keep showing the old username
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Moves the inbox of a user to another shard while the user keeps sending and receiving.
+     * New messages go to the target as soon as the move starts; until it completes, inbox reads
+     * cover both shards. Copying starts once every node has had time to reload the placement,
+     * so messages still written to the old shard by another node are copied as well.
+     *
+     * @param username Username
+     * @param target   Shard to move the user to
+     * @return Future completing with the RESHARD response
+     */
+    public CompletableFuture<String> reshard(String username, int target) {
+        if (target < 0 || target >= shards.size()) {
+            return CompletableFuture.completedFuture("Error: Shard must be between 0 and " + (shards.size() - 1) + ".");
+        }
+        int[] override = overrides.get(username);
+        boolean resuming = override != null && override[1] >= 0;
+        if (resuming && override[0] != target) {
+            return CompletableFuture.completedFuture("Error: User is being moved to shard " + override[0] + ".");
+        }
+        int source = resuming ? override[1] : shardOf(username);
+        if (source == target) {
+            return CompletableFuture.completedFuture("User is already on shard " + target + ".");
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                place(username, target, source);
+                Thread.sleep(2 * OVERRIDE_REFRESH_MILLIS);
+                long moved = 0;
+                int batch;
+                do {
+                    batch = dbStage.submit(() -> moveBatch(username, shards.get(source), shards.get(target))).join();
+                    moved += batch;
+                } while (batch == MOVE_BATCH_SIZE);
+                place(username, target, -1);
+                return "Moved " + moved + " messages of " + username + " to shard " + target + ".";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "Error: Move of " + username + " was interrupted; run RESHARD again to finish it.";
+            }
+        }, mover);
+    }
+
+    /**
+     * Records the placement of a user and applies it on this node at once.
+     *
+     * @param username      Username
+     * @param shard         Shard new messages are stored on
+     * @param previousShard Shard being moved from, or -1
+     */
+    private void place(String username, int shard, int previousShard) {
+        dbStage.submit(() -> {
+            primary().setShard(username, shard, previousShard);
+            loadOverrides();
+            return null;
+        }).join();
+    }
+
+    /**
+     * Copies the oldest inbox messages of a user and their pending deliveries to the target shard,
+     * then deletes them from the source.
+     * Called on the database stage. A failure between the two steps leaves duplicates that the next
+     * batch skips and readers merge away.
+     *
+     * @param username Username
+     * @param source   Shard being moved from
+     * @param target   Shard being moved to
+     * @return Number of messages moved
+     * @throws SQLException if a database access error occurs
+     */
+    private int moveBatch(String username, Database source, Database target) throws SQLException {
+        List<Message> batch = source.readInbox(username, 0, MOVE_BATCH_SIZE);
+        if (!batch.isEmpty()) {
+            List<Long> undelivered = source.queuedDeliveries(username, batch);
+            target.insertMessages(batch);
+            if (!undelivered.isEmpty()) {
+                target.enqueueDeliveries(username, undelivered);
+            }
+            source.deleteMessages(username, batch);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Returns a one-line summary of the shards.
+     *
+     * @return A string in the format "shards count=.. moved=.. moving=.."
+     */
+    public String stats() {
+        long moving = overrides.values().stream().filter(override -> override[1] >= 0).count();
+        return "shards count=" + shards.size() + " moved=" + overrides.size() + " moving=" + moving;
+    }
+
+    /**
+     * Stops reloading placements and cancels running moves.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        mover.shutdownNow();
+    }
+
+    /**
+     * Runs a query on several shards in parallel and merges the results.
+     *
+     * @param targets Shards to query
+     * @param query   Query returning messages in ID order
+     * @param limit   Maximum number of messages to return
+     * @return Future completing with the first messages of the merged results in ID order, without duplicates
+     */
+    private CompletableFuture<List<Message>> gather(List<Database> targets, ShardQuery query, int limit) {
+        List<CompletableFuture<List<Message>>> parts = new ArrayList<>();
+        for (Database shard : targets) {
+            parts.add(dbStage.submit(() -> query.run(shard)));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            NavigableMap<Long, Message> merged = new TreeMap<>();
+            for (CompletableFuture<List<Message>> part : parts) {
+                for (Message message : part.join()) {
+                    merged.put(message.getId(), message); // A message being moved may be on both shards
+                }
+            }
+            return new ArrayList<>(merged.values()).subList(0, Math.min(limit, merged.size()));
+        });
+    }
+
+    /**
+     * Formats gathered messages as a response line.
+     *
+     * @param messages Messages in ID order
+     * @return The messages as a single string separated by ":::"
+     */
+    private static String format(List<Message> messages) {
+        StringBuilder out = new StringBuilder();
+        for (Message message : messages) {
+            if (out.length() > 0) {
+                out.append(":::");
+            }
+            Message.appendTo(out, message.getId(), message.getSender(), message.getReceiver(), message.getContent(), message.getTimestamp());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Runs a page query that encodes its rows straight into a response line. Called on the database stage.
+     *
+     * @param query Query appending the messages of one shard
+     * @return The response line
+     * @throws SQLException if a database access error occurs
+     */
+    private static String encode(ShardEncoder query) throws SQLException {
+        StringBuilder out = new StringBuilder();
+        query.run(out);
+        return out.toString();
+    }
+
+    /**
+     * Maps database errors of a page read to an error response.
+     *
+     * @param page    Future of the response line
+     * @param failure Response if a shard query failed
+     * @return Future completing with the response line
+     */
+    private static CompletableFuture<String> respond(CompletableFuture<String> page, String failure) {
+        return page.handle((response, error) -> {
+            if (error == null) {
+                return response;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof SQLException) {
+                cause.printStackTrace();
+                return failure;
+            }
+            throw new CompletionException(cause); // E.g. a full database stage, reported as busy
+        });
+    }
+
+    /**
+     * Creates a daemon thread.
+     *
+     * @param runnable Body of the thread
+     * @param name     Thread name
+     * @return The unstarted thread
+     */
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * ShardQuery interface represents a message query run on one shard.
+     */
+    @FunctionalInterface
+    private interface ShardQuery {
+        /**
+         * Runs the query.
+         *
+         * @param shard Shard to query
+         * @return Messages in ID order
+         * @throws SQLException if a database access error occurs
+         */
+        List<Message> run(Database shard) throws SQLException;
+    }
+
+    /**
+     * ShardEncoder interface represents a page query that encodes its rows into a response line.
+     */
+    @FunctionalInterface
+    private interface ShardEncoder {
+        /**
+         * Runs the query.
+         *
+         * @param out Buffer receiving the messages separated by ":::"
+         * @throws SQLException if a database access error occurs
+         */
+        void run(StringBuilder out) throws SQLException;
+    }
+}
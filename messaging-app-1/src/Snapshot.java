@@ -0,0 +1,505 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Snapshot class is an admin tool that exports the users and messages of a database to a snapshot file,
+ * and restores a snapshot into another database. Every table, and every partition of the messages table,
+ * is streamed with COPY in binary format into its own section of deflate-compressed blocks, all read from
+ * one consistent database snapshot. An index at the end of the file lets restore load the sections
+ * in parallel, each on its own connection.
+ * <p>
+ * Snapshot file layout:
+ * <pre>
+ * header:  "CHATSNAP", format version (int), schema version (int), creation time in epoch milliseconds (long)
+ * section: blocks of {uncompressed length (int), compressed length (int), deflated COPY data}, ended by {0, 0}
+ * index:   section count (int), then per section: table (UTF), offset, rows, bytes, oldest and newest timestamp (longs)
+ * footer:  offset of the index (long)
+ * </pre>
+ * Usage: java -Ddb.url=... Snapshot export|restore file [threads]
+ * <p>
+ * A snapshot covers one database. With message shards, each shard is exported and restored on its own.
+ */
+public class Snapshot {
+    private static final byte[] MAGIC = "CHATSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int FORMAT_VERSION = 1; // Layout of the snapshot file; the COPY data follows the schema version
+    private static final int BLOCK_SIZE = 1024 * 1024; // Uncompressed bytes per block
+    private static final int DEFAULT_THREADS = 4; // Sections restored in parallel
+    private static final String USER_COLUMNS = "username, password, name, surname, birthdate, gender, email, is_admin"; // User IDs are reassigned on restore
+    private static final String MESSAGE_COLUMNS = "id, sender_username, receiver_username, content, timestamp";
+    private static final String DB_URL = System.getProperty("db.url", "jdbc:postgresql://localhost:5432/postgres");
+    private static final String DB_USER = System.getProperty("db.user", "postgres");
+    private static final String DB_PASSWORD = System.getProperty("db.password", "123456");
+    private static final String SHARD_URLS = System.getProperty("db.shards", ""); // Refused; see main()
+
+    /**
+     * Main method to run the tool.
+     *
+     * @param args "export" or "restore", the snapshot file and for restore the number of threads (default 4)
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || !(args[0].equals("export") || args[0].equals("restore"))) {
+            System.out.println("Usage: java -Ddb.url=jdbc:postgresql://host:port/db Snapshot export|restore file [threads]");
+            System.exit(2);
+        }
+        if (!SHARD_URLS.isBlank()) {
+            // Exporting only db.url would silently leave out the messages of every other shard
+            System.out.println("Snapshot covers one database. Export and restore each shard on its own with its -Ddb.url, without -Ddb.shards.");
+            System.exit(2);
+        }
+        Database db = new Database(DB_URL, DB_USER, DB_PASSWORD);
+        Path file = Paths.get(args[1]);
+        try {
+            if (args[0].equals("export")) {
+                export(db, file);
+            } else {
+                restore(db, file, args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS);
+            }
+        } catch (IOException | SQLException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Exports the users and every non-empty messages partition. The file is written aside and moved into place once complete.
+     *
+     * @param db   Source database
+     * @param file Snapshot file
+     * @throws IOException  if the file cannot be written
+     * @throws SQLException if a database access error occurs
+     */
+    public static void export(Database db, Path file) throws IOException, SQLException {
+        long started = System.nanoTime();
+        Path partial = file.resolveSibling(file.getFileName() + ".part");
+        List<Section> sections = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.write(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(db.getSchemaVersion());
+            out.writeLong(System.currentTimeMillis());
+            writeFully(channel, header.toByteArray());
+            db.beginSnapshot();
+            try {
+                sections.add(exportTable(db, channel, "users", USER_COLUMNS, null));
+                for (String partition : db.messagePartitions()) {
+                    long[] range = db.timestampRange(partition);
+                    if (range != null) {
+                        sections.add(exportTable(db, channel, partition, MESSAGE_COLUMNS, range));
+                    }
+                }
+            } finally {
+                db.endSnapshot();
+            }
+            long indexOffset = channel.position();
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            out = new DataOutputStream(index);
+            out.writeInt(sections.size());
+            for (Section section : sections) {
+                section.writeTo(out);
+            }
+            out.writeLong(indexOffset);
+            writeFully(channel, index.toByteArray());
+            channel.force(true);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        report("Exported", sections, Files.size(file), started);
+    }
+
+    /**
+     * Streams one table into a new section at the end of the file.
+     *
+     * @param db      Source database, inside beginSnapshot()
+     * @param channel Snapshot file
+     * @param table   Table or partition
+     * @param columns Comma-separated columns to export
+     * @param range   Oldest and newest message timestamp, or null for users
+     * @return The written section
+     * @throws IOException  if the file cannot be written
+     * @throws SQLException if a database access error occurs
+     */
+    private static Section exportTable(Database db, FileChannel channel, String table, String columns, long[] range) throws IOException, SQLException {
+        long offset = channel.position();
+        try (BlockOutputStream out = new BlockOutputStream(channel)) {
+            long rows = db.copyOut(table, columns, out);
+            out.finish();
+            return new Section(table, offset, rows, out.getBytes(), range == null ? 0 : range[0], range == null ? 0 : range[1]);
+        }
+    }
+
+    /**
+     * Restores a snapshot into a database without messages. The schema is migrated first and must then
+     * have the version of the snapshot. Users that already exist are kept. Sections are loaded in parallel;
+     * a section that fails is rolled back on its own and reported.
+     *
+     * @param db      Target database
+     * @param file    Snapshot file
+     * @param threads Sections loaded in parallel
+     * @throws IOException  if the file cannot be read or is not a snapshot
+     * @throws SQLException if a database access error occurs
+     */
+    public static void restore(Database db, Path file, int threads) throws IOException, SQLException {
+        long started = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(readFully(channel, 0, MAGIC.length + 16)));
+            byte[] magic = new byte[MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.readInt() != FORMAT_VERSION) {
+                throw new IOException(file + " is not a snapshot of this format version.");
+            }
+            int schemaVersion = header.readInt();
+            long indexOffset = new DataInputStream(new ByteArrayInputStream(readFully(channel, channel.size() - 8, 8))).readLong();
+            DataInputStream index = new DataInputStream(new ByteArrayInputStream(readFully(channel, indexOffset, (int) (channel.size() - 8 - indexOffset))));
+            List<Section> sections = new ArrayList<>();
+            for (int i = index.readInt(); i > 0; i--) {
+                sections.add(Section.readFrom(index));
+            }
+
+            db.migrate();
+            if (db.getSchemaVersion() != schemaVersion) {
+                throw new IOException("Snapshot has schema version " + schemaVersion + ", the database " + db.getSchemaVersion() + ".");
+            }
+            if (db.hasMessages()) {
+                throw new IOException("The database already holds messages; restore into an empty deployment.");
+            }
+            for (Section section : sections) {
+                if (!section.table.equals("users")) {
+                    db.ensureMessagePartitions(section.oldest, section.newest);
+                }
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<Long>> loads = new ArrayList<>();
+                for (Section section : sections) {
+                    loads.add(pool.submit(() -> {
+                        long sectionStarted = System.nanoTime();
+                        try (InputStream in = new BlockInputStream(channel, section.offset)) {
+                            long rows = section.table.equals("users")
+                                    ? db.copyUsersIn(USER_COLUMNS, in)
+                                    : db.copyMessagesIn(MESSAGE_COLUMNS, in);
+                            System.out.printf("  %-28s %,12d rows in %7.2f s%n", section.table, rows, (System.nanoTime() - sectionStarted) / 1e9);
+                            return rows;
+                        }
+                    }));
+                }
+                boolean failed = false;
+                for (int i = 0; i < loads.size(); i++) {
+                    try {
+                        loads.get(i).get();
+                    } catch (Exception e) {
+                        System.out.println("  " + sections.get(i).table + " failed:");
+                        e.printStackTrace();
+                        failed = true;
+                    }
+                }
+                if (failed) {
+                    throw new IOException("Some sections were not restored.");
+                }
+            } finally {
+                pool.shutdown();
+            }
+            report("Restored", sections, channel.size(), started);
+        }
+    }
+
+    /**
+     * Prints the size and throughput of an export or restore.
+     *
+     * @param action    "Exported" or "Restored"
+     * @param sections  Sections of the snapshot
+     * @param fileBytes Size of the snapshot file
+     * @param started   System.nanoTime() at the start
+     */
+    private static void report(String action, List<Section> sections, long fileBytes, long started) {
+        long rows = 0;
+        long bytes = 0;
+        for (Section section : sections) {
+            rows += section.rows;
+            bytes += section.bytes;
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        System.out.printf("%s %,d rows in %d sections, %,.1f MB of COPY data (%,.1f MB on disk), in %.2f s: %,.0f rows/s, %,.1f MB/s%n",
+                action, rows, sections.size(), bytes / 1e6, fileBytes / 1e6, seconds, rows / seconds, bytes / 1e6 / seconds);
+    }
+
+    /**
+     * Writes a whole buffer at the current position of a file.
+     *
+     * @param channel File
+     * @param data    Bytes to write
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeFully(FileChannel channel, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads bytes at a position of a file, without moving its position, so threads can share the file.
+     *
+     * @param channel  File
+     * @param position Offset of the first byte
+     * @param length   Number of bytes
+     * @return The bytes
+     * @throws IOException if the file ends early or cannot be read
+     */
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Snapshot file is truncated.");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Section class represents the index entry of one exported table.
+     */
+    private static class Section {
+        private final String table;
+        private final long offset;
+        private final long rows;
+        private final long bytes;
+        private final long oldest;
+        private final long newest;
+
+        /**
+         * Constructor for Section.
+         *
+         * @param table  Exported table or partition
+         * @param offset Offset of the first block in the file
+         * @param rows   Number of rows
+         * @param bytes  Uncompressed size of the COPY data
+         * @param oldest Oldest message timestamp in epoch milliseconds, or 0 for users
+         * @param newest Newest message timestamp in epoch milliseconds, or 0 for users
+         */
+        private Section(String table, long offset, long rows, long bytes, long oldest, long newest) {
+            this.table = table;
+            this.offset = offset;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.oldest = oldest;
+            this.newest = newest;
+        }
+
+        /**
+         * Writes the index entry.
+         *
+         * @param out Index being written
+         * @throws IOException if an I/O error occurs
+         */
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(table);
+            out.writeLong(offset);
+            out.writeLong(rows);
+            out.writeLong(bytes);
+            out.writeLong(oldest);
+            out.writeLong(newest);
+        }
+
+        /**
+         * Reads an index entry.
+         *
+         * @param in Index being read
+         * @return The section
+         * @throws IOException if the index is truncated
+         */
+        private static Section readFrom(DataInputStream in) throws IOException {
+            return new Section(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        }
+    }
+
+    /**
+     * BlockOutputStream class that deflates the data written to it in blocks and appends them to a file.
+     */
+    private static class BlockOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 100 + 64]; // Room for incompressible data
+        private int length = 0;
+        private long bytes = 0;
+
+        /**
+         * Constructor for BlockOutputStream.
+         *
+         * @param channel File, positioned where the section starts
+         */
+        private BlockOutputStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == BLOCK_SIZE) {
+                writeBlock();
+            }
+            block[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (length == BLOCK_SIZE) {
+                    writeBlock();
+                }
+                int copied = Math.min(count, BLOCK_SIZE - length);
+                System.arraycopy(data, offset, block, length, copied);
+                length += copied;
+                offset += copied;
+                count -= copied;
+            }
+        }
+
+        /**
+         * Writes the last block and the end marker of the section.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        private void finish() throws IOException {
+            if (length > 0) {
+                writeBlock();
+            }
+            writeFully(channel, ByteBuffer.allocate(8).putInt(0).putInt(0).array());
+        }
+
+        /**
+         * Deflates the buffered data and appends it as one block.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            writeFully(channel, ByteBuffer.allocate(8).putInt(length).putInt(size).array());
+            writeFully(channel, Arrays.copyOf(compressed, size));
+            bytes += length;
+            length = 0;
+        }
+
+        /**
+         * Returns the number of bytes written.
+         *
+         * @return Uncompressed size of the section
+         */
+        private long getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public void close() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * BlockInputStream class that reads and inflates the blocks of one section. Reads do not move
+     * the position of the file, so the sections of one file can be read by several threads at once.
+     */
+    private static class BlockInputStream extends InputStream {
+        private final FileChannel channel;
+        private final Inflater inflater = new Inflater();
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private long position;
+        private int length = 0;
+        private int next = 0;
+        private boolean ended = false;
+
+        /**
+         * Constructor for BlockInputStream.
+         *
+         * @param channel File
+         * @param offset  Offset of the first block of the section
+         */
+        private BlockInputStream(FileChannel channel, long offset) {
+            this.channel = channel;
+            this.position = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (next == length && !readBlock()) {
+                return -1;
+            }
+            return block[next++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int count) throws IOException {
+            if (count == 0) {
+                return 0;
+            }
+            if (next == length && !readBlock()) {
+                return -1;
+            }
+            int copied = Math.min(count, length - next);
+            System.arraycopy(block, next, data, offset, copied);
+            next += copied;
+            return copied;
+        }
+
+        /**
+         * Reads and inflates the next block.
+         *
+         * @return false at the end of the section
+         * @throws IOException if the file is truncated or the block is corrupt
+         */
+        private boolean readBlock() throws IOException {
+            if (ended) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.wrap(readFully(channel, position, 8));
+            int size = header.getInt();
+            int compressedSize = header.getInt();
+            position += 8;
+            if (size == 0) {
+                ended = true;
+                return false;
+            }
+            if (size > BLOCK_SIZE) {
+                throw new IOException("Corrupt snapshot block at offset " + (position - 8) + ".");
+            }
+            inflater.reset();
+            inflater.setInput(readFully(channel, position, compressedSize));
+            position += compressedSize;
+            try {
+                length = inflater.inflate(block, 0, size);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt snapshot block at offset " + (position - compressedSize - 8) + ".", e);
+            }
+            if (length != size) {
+                throw new IOException("Corrupt snapshot block at offset " + (position - compressedSize - 8) + ".");
+            }
+            next = 0;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            inflater.end();
+        }
+    }
+}
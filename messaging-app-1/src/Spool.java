@@ -0,0 +1,304 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Spool class that keeps messages sent while a database is unavailable in a local file, and stores
+ * them once every shard can be reached again. A message is acknowledged only after it has been synced
+ * to disk. Replay moves the spool aside, so new messages can be spooled meanwhile, and stores it in
+ * batches in file order. A message stored before a crash is skipped when the batch is replayed again.
+ * The client message ID of a message is spooled with it and recorded in message_keys on replay, so
+ * a retry of a spooled message is recognized once the message is stored.
+ * <p>
+ * Spool line format: "id:::sender:::receiver:::millis:::content", or with a client message ID
+ * "K:::clientMsgId:::id:::sender:::receiver:::millis:::content".
+ */
+public class Spool {
+    private static final String KEY_MARKER = "K"; // Starts a line that carries a client message ID; other lines start with the numeric message ID
+    private final Path log; // Messages waiting for the database
+    private final Path replayLog; // Messages being replayed
+    private final Shards shards;
+    private final Stage dbStage;
+    private final int batchSize;
+    private final Consumer<String> onStored; // Called with the receiver of every replayed message
+    private FileChannel channel;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Constructor for Spool. Messages left by a previous run are counted and replayed once started.
+     *
+     * @param dir       Spool directory
+     * @param nodeId    ID of this node, so nodes can share the directory
+     * @param shards    Message shards
+     * @param dbStage   Stage the probes and replay batches run on
+     * @param batchSize Messages stored per replay batch
+     * @param onStored  Called with the receiver of every replayed message
+     * @throws IOException if the spool cannot be opened
+     */
+    public Spool(Path dir, int nodeId, Shards shards, Stage dbStage, int batchSize, Consumer<String> onStored) throws IOException {
+        Files.createDirectories(dir);
+        this.log = dir.resolve("node-" + nodeId + ".log");
+        this.replayLog = dir.resolve("node-" + nodeId + ".replay");
+        this.shards = shards;
+        this.dbStage = dbStage;
+        this.batchSize = batchSize;
+        this.onStored = onStored;
+        this.channel = open(log);
+        depth.set(countLines(log) + countLines(replayLog));
+    }
+
+    /**
+     * Starts probing unavailable shards and replaying the spool once every shard is back.
+     *
+     * @param intervalMillis Time between two checks
+     */
+    public void start(long intervalMillis) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // Keep checking
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Probes the unavailable shards, or replays the spool if every shard is available. Runs on the spool thread.
+     */
+    private void check() {
+        boolean available = true;
+        for (Database shard : shards.all()) {
+            if (shard.getBreaker().isOpen()) {
+                available = false;
+                if (shard.getBreaker().isProbeDue()) {
+                    dbStage.submit(() -> {
+                        shard.warmUp(); // Reconnects, closing the breaker on success
+                        return null;
+                    });
+                }
+            }
+        }
+        if (available && depth.get() > 0) {
+            replay();
+        }
+    }
+
+    /**
+     * Appends a message to the spool and syncs it to disk. Called on the database stage.
+     *
+     * @param message     Message with its ID assigned
+     * @param clientMsgId ID the client chose for the message, or null
+     * @return Send message response, "Message sent.:::id" once the message is on disk
+     * @throws IOException if the spool cannot be written
+     */
+    public synchronized String append(Message message, String clientMsgId) throws IOException {
+        String line = (clientMsgId != null ? KEY_MARKER + ":::" + clientMsgId + ":::" : "")
+                + message.getId() + ":::" + message.getSender() + ":::" + message.getReceiver() + ":::"
+                + message.getTimestamp().getTime() + ":::" + message.getContent() + "\n";
+        ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        depth.incrementAndGet();
+        spooled.incrementAndGet();
+        return "Message sent.:::" + message.getId();
+    }
+
+    /**
+     * Stores the spooled messages. Runs on the spool thread; a failed batch leaves the rest for the next check.
+     */
+    private void replay() {
+        try {
+            synchronized (this) {
+                if (!Files.exists(replayLog)) {
+                    channel.close();
+                    Files.move(log, replayLog, StandardCopyOption.ATOMIC_MOVE);
+                    channel = open(log);
+                }
+            }
+            dropTornTail(replayLog);
+            try (BufferedReader in = Files.newBufferedReader(replayLog, StandardCharsets.UTF_8)) {
+                List<Message> batch = new ArrayList<>();
+                Map<Long, String> keys = new HashMap<>(); // Message ID -> client message ID
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String key = null;
+                    if (line.startsWith(KEY_MARKER + ":::")) {
+                        String[] keyed = line.split(":::", 3);
+                        if (keyed.length < 3) {
+                            continue;
+                        }
+                        key = keyed[1];
+                        line = keyed[2];
+                    }
+                    String[] fields = line.split(":::", 5); // id:::sender:::receiver:::millis:::content
+                    if (fields.length < 5) {
+                        continue;
+                    }
+                    Message message = new Message(Long.parseLong(fields[0]), fields[1], fields[2], fields[4], new Timestamp(Long.parseLong(fields[3])));
+                    batch.add(message);
+                    if (key != null) {
+                        keys.put(message.getId(), key);
+                    }
+                    if (batch.size() == batchSize) {
+                        store(batch, keys);
+                        batch.clear();
+                        keys.clear();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    store(batch, keys);
+                }
+            }
+            Files.delete(replayLog);
+            synchronized (this) {
+                depth.set(countLines(log)); // Messages spooled during the replay
+            }
+        } catch (IOException | CompletionException e) {
+            e.printStackTrace(); // Replayed again from the start; stored messages are skipped
+            synchronized (this) {
+                depth.set(countLines(log) + countLines(replayLog));
+            }
+        }
+    }
+
+    /**
+     * Stores one batch on the shards of its receivers and queues it for delivery.
+     * Messages to users that no longer exist are dropped.
+     *
+     * @param batch Spooled messages in file order
+     * @param keys  Client message IDs of the messages that carry one, by message ID
+     */
+    private void store(List<Message> batch, Map<Long, String> keys) {
+        Set<String> receivers = new HashSet<>();
+        int stored = dbStage.submit(() -> {
+            Map<Integer, List<Message>> byShard = new TreeMap<>();
+            Map<String, Boolean> exists = new HashMap<>();
+            for (Message message : batch) {
+                String receiver = message.getReceiver();
+                Boolean known = exists.get(receiver);
+                if (known == null) {
+                    known = shards.primary().userExists(receiver);
+                    exists.put(receiver, known);
+                }
+                if (known) {
+                    byShard.computeIfAbsent(shards.shardOf(receiver), key -> new ArrayList<>()).add(message);
+                    receivers.add(receiver);
+                } else {
+                    dropped.incrementAndGet();
+                }
+            }
+            int count = 0;
+            for (Map.Entry<Integer, List<Message>> group : byShard.entrySet()) {
+                count += shards.all().get(group.getKey()).replayMessages(group.getValue(), keys);
+            }
+            return count;
+        }).join();
+        depth.addAndGet(-batch.size());
+        replayed.addAndGet(stored);
+        receivers.forEach(onStored);
+    }
+
+    /**
+     * Returns the number of messages waiting to be stored.
+     *
+     * @return Spool depth
+     */
+    public long depth() {
+        return depth.get();
+    }
+
+    /**
+     * Returns a one-line summary of the spool.
+     *
+     * @return A string in the format "spool depth=.. spooled=.. replayed=.. dropped=.."
+     */
+    public String stats() {
+        return "spool depth=" + depth.get() + " spooled=" + spooled.get() + " replayed=" + replayed.get() + " dropped=" + dropped.get();
+    }
+
+    /**
+     * Stops replaying and closes the spool file.
+     */
+    public synchronized void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Opens a spool file for appending.
+     *
+     * @param path Spool file
+     * @return Channel positioned at the end of the file
+     * @throws IOException if the file cannot be opened
+     */
+    private static FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Cuts off a last line without its line feed, left by a crash during append.
+     * Its message was never acknowledged, since a message is acknowledged only once its whole line is synced.
+     *
+     * @param path Spool file
+     * @throws IOException if the file cannot be read or truncated
+     */
+    private static void dropTornTail(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            long end = file.size();
+            while (end > 0) {
+                last.clear();
+                file.read(last, end - 1);
+                if (last.get(0) == '\n') {
+                    break;
+                }
+                end--;
+            }
+            file.truncate(end);
+        }
+    }
+
+    /**
+     * Counts the messages in a spool file.
+     *
+     * @param path Spool file
+     * @return Number of lines, or 0 if the file does not exist or cannot be read
+     */
+    private static long countLines(Path path) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (Stream<String> lines = Files.lines(path, StandardCharsets.UTF_8)) {
+            return lines.count();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage class that runs one kind of work on its own bounded thread pool and tracks queue depth and latency.
+ */
+public class Stage {
+    private static final ThreadLocal<Long> currentWait = ThreadLocal.withInitial(() -> 0L); // Queue wait of the running task
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalServiceNanos = new AtomicLong();
+    private final AtomicLong maxServiceNanos = new AtomicLong();
+
+    /**
+     * Constructor for Stage.
+     *
+     * @param name          Stage name, used for thread names and statistics
+     * @param threads       Number of worker threads
+     * @param queueCapacity Maximum number of queued tasks before submissions are rejected
+     */
+    public Stage(String name, int threads, int queueCapacity) {
+        this(name, threads, queueCapacity, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * Constructor for Stage with a thread priority, for background work that must yield to requests.
+     *
+     * @param name          Stage name, used for thread names and statistics
+     * @param threads       Number of worker threads
+     * @param queueCapacity Maximum number of queued tasks before submissions are rejected
+     * @param priority      Priority of the worker threads
+     */
+    public Stage(String name, int threads, int queueCapacity, int priority) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadFactory() {
+                    private int count = 0;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, name + "-" + count++);
+                        thread.setDaemon(true);
+                        thread.setPriority(priority);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Submits a task to the stage.
+     *
+     * @param task Task to run
+     * @param <T>  Result type
+     * @return Future completing with the task result; completes exceptionally if the queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long enqueued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                totalWaitNanos.addAndGet(started - enqueued);
+                currentWait.set(started - enqueued);
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    failed.incrementAndGet();
+                    future.completeExceptionally(t);
+                } finally {
+                    long service = System.nanoTime() - started;
+                    totalServiceNanos.addAndGet(service);
+                    maxServiceNanos.accumulateAndGet(service, Math::max);
+                    currentWait.set(0L);
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Returns how long the task running on the calling thread waited in its stage queue.
+     *
+     * @return Queue wait in nanoseconds, or 0 outside a stage
+     */
+    public static long currentWaitNanos() {
+        return currentWait.get();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a worker.
+     *
+     * @return Current queue depth
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns a one-line summary of the stage statistics.
+     *
+     * @return A string in the format "name queued=.. active=.. completed=.. failed=.. rejected=.. avgWaitMs=.. avgServiceMs=.. maxServiceMs=.."
+     */
+    public String stats() {
+        long done = Math.max(1, completed.get());
+        return String.format("%s queued=%d active=%d completed=%d failed=%d rejected=%d avgWaitMs=%.2f avgServiceMs=%.2f maxServiceMs=%.2f",
+                name, getQueueDepth(), executor.getActiveCount(), completed.get(), failed.get(), rejected.get(),
+                totalWaitNanos.get() / 1e6 / done, totalServiceNanos.get() / 1e6 / done, maxServiceNanos.get() / 1e6);
+    }
+
+    /**
+     * Stops accepting tasks and lets queued tasks finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,138 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Trace class that records Java Flight Recorder events for client commands and SQL calls
+ * and logs operations slower than a threshold. Events cost almost nothing unless a recording is running,
+ * e.g. java -XX:StartFlightRecording=settings=profile,filename=chat.jfr Server
+ */
+public class Trace {
+    private static final long SLOW_COMMAND_NANOS = Long.getLong("trace.slowCommandMillis", 500) * 1_000_000;
+    private static final long SLOW_SQL_NANOS = Long.getLong("trace.slowSqlMillis", 200) * 1_000_000;
+
+    /**
+     * Starts tracing a client command. Called when the command starts executing.
+     *
+     * @param request Decoded request
+     * @param user    Logged in user, or null
+     * @return Event to pass to finishCommand()
+     */
+    public static CommandEvent startCommand(Request request, String user) {
+        CommandEvent event = new CommandEvent();
+        event.command = request.getName();
+        event.user = user;
+        event.queueWait = System.nanoTime() - request.getReceivedAt();
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes tracing a client command. Called after its response has been written.
+     *
+     * @param event        Event returned by startCommand()
+     * @param bytesWritten Size of the response
+     */
+    public static void finishCommand(CommandEvent event, long bytesWritten) {
+        event.end();
+        event.bytesWritten = bytesWritten;
+        long duration = System.nanoTime() - event.startNanos;
+        if (duration >= SLOW_COMMAND_NANOS) {
+            System.err.printf("SLOW command=%s user=%s took=%.1fms queued=%.1fms bytes=%d%n",
+                    event.command, event.user, duration / 1e6, event.queueWait / 1e6, bytesWritten);
+        }
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts tracing a database call. Called on the database stage.
+     *
+     * @param operation Name of the Database method
+     * @param user      User the call is about, or null
+     * @return Event to pass to finishSql()
+     */
+    public static SqlEvent startSql(String operation, String user) {
+        SqlEvent event = new SqlEvent();
+        event.operation = operation;
+        event.user = user;
+        event.lockWait = Stage.currentWaitNanos();
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes tracing a database call.
+     *
+     * @param event Event returned by startSql()
+     */
+    public static void finishSql(SqlEvent event) {
+        event.end();
+        long duration = System.nanoTime() - event.startNanos;
+        if (duration >= SLOW_SQL_NANOS) {
+            System.err.printf("SLOW sql=%s user=%s took=%.1fms waited=%.1fms rows=%d%n",
+                    event.operation, event.user, duration / 1e6, event.lockWait / 1e6, event.rows);
+        }
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    /**
+     * CommandEvent class represents the execution of one client command, from dispatch to the written response.
+     */
+    @Name("chat.Command")
+    @Label("Chat Command")
+    @Category("Chat")
+    @StackTrace(false)
+    public static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("User")
+        String user;
+
+        @Label("Queue Wait")
+        @Description("Time between decoding the command and starting it, behind earlier commands of the same client")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueWait;
+
+        @Label("Bytes Written")
+        @DataAmount(DataAmount.BYTES)
+        long bytesWritten;
+
+        transient long startNanos;
+    }
+
+    /**
+     * SqlEvent class represents one call of a Database method.
+     */
+    @Name("chat.Sql")
+    @Label("Chat SQL")
+    @Category("Chat")
+    public static class SqlEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("User")
+        String user;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Lock Wait")
+        @Description("Time the call waited in the database stage queue for a connection")
+        @Timespan(Timespan.NANOSECONDS)
+        long lockWait;
+
+        transient long startNanos;
+    }
+}
@@ -0,0 +1,116 @@
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * UserDirectory class that serves LISTUSERS pages from an in-memory snapshot of the users table.
+ * The snapshot is rebuilt lazily after any user mutation, so repeated admin views never rescan the table.
+ * Mutations on other nodes invalidate it through a cluster broadcast; as that is best effort, a snapshot
+ * is also rebuilt once it is older than MAX_SNAPSHOT_AGE_MILLIS.
+ */
+public class UserDirectory {
+    public static final String NO_CURSOR = "-"; // Marks a missing cursor or prefix in the protocol
+    private static final long MAX_SNAPSHOT_AGE_MILLIS = 60 * 1000; // Bounds how long a missed broadcast leaves the snapshot stale
+
+    private final Database db;
+    private final Stage dbStage;
+    private final AtomicLong version = new AtomicLong(); // Incremented on every invalidation
+    private volatile NavigableMap<String, String> snapshot; // Username -> display row, or null if stale
+    private volatile long builtAt; // When the snapshot was read, in epoch milliseconds
+
+    /**
+     * Constructor for UserDirectory.
+     *
+     * @param db      Database
+     * @param dbStage Stage the snapshot is rebuilt on
+     */
+    public UserDirectory(Database db, Stage dbStage) {
+        this.db = db;
+        this.dbStage = dbStage;
+    }
+
+    /**
+     * Marks the snapshot stale. Called after every user mutation, on this node or, through the cluster link, on another one.
+     */
+    public void invalidate() {
+        version.incrementAndGet();
+        snapshot = null;
+    }
+
+    /**
+     * Returns one page of users in username order.
+     *
+     * @param prefix   Only usernames starting with this are listed; empty for all
+     * @param after    Only usernames after this are listed; empty for the first page
+     * @param pageSize Maximum number of users to list
+     * @return Future completing with "nextCursor:::username:::name:::surname:::birthdate:::gender:::email:::isAdmin:::...",
+     *         where nextCursor is NO_CURSOR on the last page
+     */
+    public CompletableFuture<String> page(String prefix, String after, int pageSize) {
+        NavigableMap<String, String> users = snapshot;
+        if (users != null && System.currentTimeMillis() - builtAt > MAX_SNAPSHOT_AGE_MILLIS) {
+            invalidate();
+            users = null;
+        }
+        if (users != null) {
+            return CompletableFuture.completedFuture(render(users, prefix, after, pageSize));
+        }
+        return dbStage.submit(() -> render(rebuild(), prefix, after, pageSize));
+    }
+
+    /**
+     * Reloads the snapshot from the database. Called on the database stage.
+     *
+     * @return The new snapshot
+     * @throws SQLException if a database access error occurs
+     */
+    private NavigableMap<String, String> rebuild() throws SQLException {
+        NavigableMap<String, String> current = snapshot;
+        if (current != null) {
+            return current; // Another request rebuilt it while this one was queued
+        }
+        long seen = version.get();
+        long started = System.currentTimeMillis();
+        NavigableMap<String, String> users = new TreeMap<>();
+        for (User user : db.listUsers()) {
+            users.put(user.getUsername(), user.getUsername() + ":::" + user.getName() + ":::" + user.getSurname() + ":::"
+                    + user.getBirthdate() + ":::" + user.getGender() + ":::" + user.getEmail() + ":::" + user.isAdmin());
+        }
+        if (version.get() == seen) {
+            builtAt = started;
+            snapshot = users; // Only publish if no mutation happened during the scan
+        }
+        return users;
+    }
+
+    /**
+     * Renders one page of a snapshot.
+     *
+     * @param users    Snapshot
+     * @param prefix   Username prefix filter
+     * @param after    Exclusive lower bound of usernames
+     * @param pageSize Maximum number of users
+     * @return Page in the protocol format
+     */
+    private static String render(NavigableMap<String, String> users, String prefix, String after, int pageSize) {
+        NavigableMap<String, String> tail = after.compareTo(prefix) >= 0 ? users.tailMap(after, false) : users.tailMap(prefix, true);
+        StringBuilder page = new StringBuilder();
+        String last = null;
+        int count = 0;
+        for (Map.Entry<String, String> entry : tail.entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (count == pageSize) {
+                return last + page;
+            }
+            page.append(":::").append(entry.getValue());
+            last = entry.getKey();
+            count++;
+        }
+        return NO_CURSOR + page;
+    }
+}
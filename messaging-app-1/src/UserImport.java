@@ -0,0 +1,195 @@
+import java.sql.Date;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * UserImport class that streams the rows of one IMPORTUSERS command into the staging table.
+ * Rows are validated as they arrive, sent to the database in COPY chunks, and merged into
+ * users in a single statement once the client has sent every row. Plaintext passwords are
+ * hashed before they leave the server, one chunk per task on the import stage, which is apart from
+ * the verifier stage so an import never takes the threads LOGIN verifies passwords on.
+ */
+public class UserImport {
+    private static final int CHUNK_ROWS = 5000; // Rows per COPY
+    private static final int MAX_PENDING_CHUNKS = 4; // COPY chunks in flight before reading pauses
+    private static final int MAX_REPORTED_REJECTS = 1000; // Rejects listed in the response; the rest are only counted
+    private static final int[] MAX_LENGTHS = {50, 255, 50, 50, 0, 10, 100, 0}; // Column limits of the users table, 0 if not text
+
+    private final Database db;
+    private final Stage dbStage;
+    private final Stage hasher;
+    private final long batchId;
+    private List<String[]> chunk = new ArrayList<>(); // Validated rows: line number, then the fields
+    private final List<CompletableFuture<Long>> chunks = new ArrayList<>();
+    private final Deque<CompletableFuture<Long>> pendingChunks = new ArrayDeque<>();
+    private final List<String> rejects = new ArrayList<>();
+    private int chunkRows = 0;
+    private int lineNumber = 0;
+    private int stagedRows = 0;
+
+    /**
+     * Constructor for UserImport.
+     *
+     * @param db      Database
+     * @param dbStage  Stage the COPY chunks and the merge run on
+     * @param hasher   Low-priority stage the passwords are hashed on
+     * @param batchId  Unique ID of this import in the staging table
+     */
+    public UserImport(Database db, Stage dbStage, Stage hasher, long batchId) {
+        this.db = db;
+        this.dbStage = dbStage;
+        this.hasher = hasher;
+        this.batchId = batchId;
+    }
+
+    /**
+     * Validates one CSV row and appends it to the current chunk.
+     *
+     * @param line Row in the format "username,password,name,surname,birthdate,gender,email,is_admin"
+     */
+    public void addLine(String line) {
+        lineNumber++;
+        String[] fields = line.split(",", -1);
+        String error = validate(fields);
+        if (error != null) {
+            rejects.add("line " + lineNumber + ": " + error);
+            return;
+        }
+        String[] row = new String[fields.length + 1];
+        row[0] = Integer.toString(lineNumber);
+        for (int i = 0; i < fields.length; i++) {
+            row[i + 1] = fields[i].trim();
+        }
+        chunk.add(row);
+        stagedRows++;
+        if (++chunkRows == CHUNK_ROWS) {
+            flush();
+        }
+    }
+
+    /**
+     * Loads the remaining rows, merges the import into users and builds the response.
+     *
+     * @return Future completing with the response line
+     */
+    public CompletableFuture<String> finish() {
+        flush();
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(v -> dbStage.submit(() -> db.mergeImportedUsers(batchId)))
+                .whenComplete((mergeRejects, error) -> {
+                    if (error != null) {
+                        dbStage.submit(() -> db.discardImport(batchId)); // Do not leave staged rows behind
+                    }
+                })
+                .thenApply(mergeRejects -> {
+                    rejects.addAll(mergeRejects);
+                    rejects.sort((a, b) -> Integer.compare(lineOf(a), lineOf(b)));
+                    int imported = stagedRows - mergeRejects.size();
+                    StringBuilder response = new StringBuilder("Imported " + imported + " users.:::Rejected " + rejects.size() + " rows.");
+                    for (String reject : rejects.subList(0, Math.min(rejects.size(), MAX_REPORTED_REJECTS))) {
+                        response.append(":::").append(reject);
+                    }
+                    if (rejects.size() > MAX_REPORTED_REJECTS) {
+                        response.append(":::... and ").append(rejects.size() - MAX_REPORTED_REJECTS).append(" more");
+                    }
+                    return response.toString();
+                });
+    }
+
+    /**
+     * Sends the current chunk to the database, waiting for the oldest chunk if too many are in flight.
+     */
+    private void flush() {
+        if (chunkRows == 0) {
+            return;
+        }
+        if (pendingChunks.size() >= MAX_PENDING_CHUNKS) {
+            pendingChunks.removeFirst().handle((rows, error) -> null).join(); // Failures are reported by finish()
+        }
+        List<String[]> rows = chunk;
+        CompletableFuture<Long> load = hasher.submit(() -> toCsv(rows))
+                .thenCompose(csv -> dbStage.submit(() -> db.copyUsersToStaging(csv)));
+        chunks.add(load);
+        pendingChunks.addLast(load);
+        chunk = new ArrayList<>();
+        chunkRows = 0;
+    }
+
+    /**
+     * Builds the COPY data of a chunk, hashing every password that is not a PBKDF2 hash yet.
+     * Runs on the verifier stage.
+     *
+     * @param rows Validated rows
+     * @return Rows in CSV format: batch_id, line, username, password, name, surname, birthdate, gender, email, is_admin
+     */
+    private String toCsv(List<String[]> rows) {
+        StringBuilder csv = new StringBuilder();
+        for (String[] row : rows) {
+            csv.append(batchId).append(',').append(row[0]);
+            for (int i = 1; i < row.length; i++) {
+                String value = i == 2 && !Credentials.isHashed(row[i]) ? Credentials.hash(row[i]) : row[i];
+                csv.append(',').append(quote(value));
+            }
+            csv.append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Checks the fields of one row against the users table.
+     *
+     * @param fields Fields of the row
+     * @return Reason the row is rejected, or null if it is valid
+     */
+    private static String validate(String[] fields) {
+        if (fields.length != MAX_LENGTHS.length) {
+            return "expected " + MAX_LENGTHS.length + " fields but got " + fields.length;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i].trim();
+            if (field.isEmpty()) {
+                return "field " + (i + 1) + " is empty";
+            }
+            if (MAX_LENGTHS[i] > 0 && field.length() > MAX_LENGTHS[i]) {
+                return "field " + (i + 1) + " is longer than " + MAX_LENGTHS[i] + " characters";
+            }
+        }
+        String password = fields[1].trim();
+        if (Credentials.isHashed(password) && !password.matches("pbkdf2\\$\\d{1,9}\\$[A-Za-z0-9+/=]+\\$[A-Za-z0-9+/=]+")) {
+            return "malformed password hash";
+        }
+        try {
+            Date.valueOf(fields[4].trim());
+        } catch (IllegalArgumentException e) {
+            return "invalid birthdate";
+        }
+        String isAdmin = fields[7].trim();
+        if (!isAdmin.equalsIgnoreCase("true") && !isAdmin.equalsIgnoreCase("false")) {
+            return "is_admin must be true or false";
+        }
+        return null;
+    }
+
+    /**
+     * Quotes a value for COPY in CSV format.
+     *
+     * @param value Raw value
+     * @return Quoted value
+     */
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Extracts the line number of a reject.
+     *
+     * @param reject Reject in the format "line N: reason"
+     * @return The line number
+     */
+    private static int lineOf(String reject) {
+        return Integer.parseInt(reject.substring(5, reject.indexOf(':')));
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Usernames class that maps every username seen by this process to a small integer, so objects kept
+ * in memory for long, like cached messages, hold an int instead of their own copy of the name.
+ * Codes are never reused; the dictionary grows with the number of distinct users, not of messages.
+ * The missing username of a removed sender or receiver has the reserved code NONE.
+ */
+public class Usernames {
+    public static final int NONE = -1; // Code of a null username, e.g. the sender of a message from a removed user
+    private static final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    private static final List<String> names = new ArrayList<>(); // Username by code
+
+    /**
+     * Returns the code of a username, assigning the next one if the name is new.
+     *
+     * @param username Username, or null
+     * @return Code of the username, or NONE for null
+     */
+    public static int codeOf(String username) {
+        if (username == null) {
+            return NONE;
+        }
+        Integer code = codes.get(username);
+        if (code != null) {
+            return code;
+        }
+        synchronized (names) {
+            return codes.computeIfAbsent(username, name -> {
+                names.add(name);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * Returns the username of a code.
+     *
+     * @param code Code returned by codeOf()
+     * @return Username, or null for NONE
+     */
+    public static String nameOf(int code) {
+        if (code == NONE) {
+            return null;
+        }
+        synchronized (names) {
+            return names.get(code);
+        }
+    }
+
+    /**
+     * Returns the number of usernames known.
+     *
+     * @return Dictionary size
+     */
+    public static int size() {
+        return codes.size();
+    }
+}